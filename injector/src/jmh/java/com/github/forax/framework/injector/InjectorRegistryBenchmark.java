@@ -0,0 +1,97 @@
+package com.github.forax.framework.injector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the creation of a prototype bean (one constructor injection and one setter injection)
+ * using reflection and using the method handle compiled by {@link InjectorRegistry#compileFactory(Constructor, Method[])}.
+ *
+ * <pre>
+ *   mvn -Pbenchmark test-compile exec:exec -pl injector
+ * </pre>
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class InjectorRegistryBenchmark {
+  public static class Dependency {}
+
+  public static class Bean {
+    private final Dependency dependency;
+    private Dependency other;
+
+    @Inject
+    public Bean(Dependency dependency) {
+      this.dependency = dependency;
+    }
+
+    @Inject
+    public void setOther(Dependency other) {
+      this.other = other;
+    }
+  }
+
+  private static final Constructor<Bean> CONSTRUCTOR;
+  private static final Method SETTER;
+  private static final MethodHandle FACTORY;
+  static {
+    try {
+      CONSTRUCTOR = Bean.class.getConstructor(Dependency.class);
+    } catch (NoSuchMethodException e) {
+      throw new AssertionError(e);
+    }
+    SETTER = InjectorRegistry.findInjectableProperties(Bean.class).getFirst().getWriteMethod();
+    FACTORY = InjectorRegistry.compileFactory(CONSTRUCTOR, new Method[] { SETTER });
+  }
+
+  private final Dependency dependency = new Dependency();
+  private final InjectorRegistry registry = new InjectorRegistry();
+  {
+    registry.registerInstance(Dependency.class, dependency);
+    registry.registerProviderClass(Bean.class);
+    registry.build();
+  }
+
+  @Benchmark
+  public Object reflection() {
+    var instance = Utils.newInstance(CONSTRUCTOR, dependency);
+    Utils.invokeMethod(instance, SETTER, dependency);
+    return instance;
+  }
+
+  @Benchmark
+  public Object methodHandle() throws Throwable {
+    return (Object) FACTORY.invokeExact(new Object[] { dependency, dependency });
+  }
+
+  @Benchmark
+  public Object lookupInstance() {
+    return registry.lookupInstance(Bean.class);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    var options = new OptionsBuilder()
+        .include(InjectorRegistryBenchmark.class.getName())
+        .build();
+    new Runner(options).run();
+  }
+}
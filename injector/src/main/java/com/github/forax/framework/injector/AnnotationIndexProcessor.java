@@ -0,0 +1,93 @@
+package com.github.forax.framework.injector;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An annotation processor that writes the index read by {@link AnnotationScanner},
+ * the file {@value AnnotationScanner#INDEX} with one line {@code className annotationName}
+ * for each annotation retained at runtime on a class or on one of its fields, constructors or methods.
+ *
+ * The local and anonymous classes are not indexed.
+ *
+ * Like {@link InjectorFactoryProcessor}, the processor only runs if the annotation processing is enabled,
+ * see {@link InjectorFactory}.
+ */
+public final class AnnotationIndexProcessor extends AbstractProcessor {
+    private final TreeSet<String> lines = new TreeSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Set.of("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (var element : roundEnv.getRootElements()) {
+            if (element instanceof TypeElement type) {
+                indexType(type);
+            }
+        }
+        if (roundEnv.processingOver()) {
+            writeIndex();
+        }
+        return false;  // other processors can process the same annotations
+    }
+
+    private void indexType(TypeElement type) {
+        var className = processingEnv.getElementUtils().getBinaryName(type).toString();
+        indexAnnotations(className, type);
+        for (var member : type.getEnclosedElements()) {
+            switch (member.getKind()) {
+                case FIELD, CONSTRUCTOR, METHOD, RECORD_COMPONENT -> indexAnnotations(className, member);
+                default -> {
+                    if (member instanceof TypeElement memberType) {
+                        indexType(memberType);
+                    }
+                }
+            }
+        }
+    }
+
+    private void indexAnnotations(String className, Element element) {
+        for (var annotationMirror : element.getAnnotationMirrors()) {
+            var annotationType = (TypeElement) annotationMirror.getAnnotationType().asElement();
+            var retention = annotationType.getAnnotation(Retention.class);
+            if (retention != null && retention.value() == RetentionPolicy.RUNTIME) {
+                lines.add(className + ' ' + processingEnv.getElementUtils().getBinaryName(annotationType));
+            }
+        }
+    }
+
+    private void writeIndex() {
+        if (lines.isEmpty()) {
+            return;
+        }
+        try {
+            var resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", AnnotationScanner.INDEX);
+            try (var writer = resource.openWriter()) {
+                for (var line : lines) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "can not write " + AnnotationScanner.INDEX + " " + e);
+        }
+    }
+}
@@ -1,28 +1,296 @@
 package com.github.forax.framework.injector;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.lang.reflect.Modifier;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.annotation.Annotation;
+import java.net.JarURLConnection;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
+/**
+ * Scans the classes of a package and calls an action for each class annotated by an annotation.
+ *
+ * The annotations are found without loading the classes, so only the annotated classes are loaded
+ * and no class is initialized by the scan.
+ * For each folder or jar file of the class path, if it contains the index {@value #INDEX} generated by
+ * {@link AnnotationIndexProcessor}, the annotations are read from the index, otherwise from the class files.
+ * The jar files are read in place, using their central directory, and for a multi-release jar,
+ * the version of a class file is the one used by the current runtime.
+ *
+ * An action registered for an annotation on members, like {@link Inject}, is called on the classes
+ * that declare a member with that annotation.
+ */
 public class AnnotationScanner {
+    static final String INDEX = "META-INF/injector/annotations.idx";
+
+    private final HashMap<Class<?>, Consumer<? super Class<?>>> actionMap = new HashMap<>();
+
     static Stream<String> findAllJavaFilesInFolder(Path folder) throws IOException {
         if (!Files.isDirectory(folder)) {
-            throw new IllegalArgumentException(folder + "is not a folder");
+            throw new IllegalArgumentException(folder + " is not a folder");
+        }
+        try (var stream = Files.list(folder)) {
+            return stream
+                    .map(path -> path.getFileName().toString())
+                    .filter(fileName -> fileName.endsWith(".class"))
+                    .map(fileName -> fileName.substring(0, fileName.length() - ".class".length()))
+                    .toList().stream();
+        }
+    }
+
+    /**
+     * A folder or a jar file of the class path that contains a package.
+     */
+    sealed interface PackageLocation {
+        record Folder(Path folder) implements PackageLocation {}
+        record Jar(Path jarFile) implements PackageLocation {}
+    }
+
+    /**
+     * Returns the locations of a package, a package can be split between several folders or jars of the class path.
+     */
+    private static List<PackageLocation> findPackageLocations(String packageName, ClassLoader classLoader) {
+        var locations = new ArrayList<PackageLocation>();
+        var urls = Utils2.getResources(packageName.replace('.', '/'), classLoader);
+        for (var url : Collections.list(urls)) {
+            switch (url.getProtocol()) {
+                case "file" -> locations.add(new PackageLocation.Folder(toPath(url)));
+                case "jar" -> locations.add(new PackageLocation.Jar(toPath(jarFileURL(url))));
+                default -> {}  // not scannable
+            }
+        }
+        if (locations.isEmpty()) {
+            throw new IllegalStateException("no folder for package " + packageName + " found");
+        }
+        return locations;
+    }
+
+    private static Path toPath(URL url) {
+        try {
+            return Path.of(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static URL jarFileURL(URL url) {
+        try {
+            // only parses the URL, the jar is not opened
+            return ((JarURLConnection) url.openConnection()).getJarFileURL();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static JarFile openJarFile(Path jarFile) throws IOException {
+        // the versioned entries of a multi-release jar replace the base entries for the current runtime
+        return new JarFile(jarFile.toFile(), true, ZipFile.OPEN_READ, Runtime.version());
+    }
+
+    private static Stream<Path> findAllClassFiles(Path folder) {
+        try (var stream = Files.list(folder)) {
+            return stream.filter(path -> path.getFileName().toString().endsWith(".class")).toList().stream();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the class file entries of a package, with their versioned content if the jar is a multi-release jar.
+     */
+    private static List<JarEntry> findAllClassEntries(JarFile jarFile, String packageName) {
+        var prefix = packageName.replace('.', '/') + '/';
+        return jarFile.versionedStream()
+                .filter(entry -> {
+                    var name = entry.getName();
+                    return name.startsWith(prefix) && name.endsWith(".class") && name.indexOf('/', prefix.length()) == -1;
+                })
+                .toList();
+    }
+
+    private static List<String> findAllClassNames(PackageLocation location, String packageName) {
+        return switch (location) {
+            case PackageLocation.Folder(var folder) ->
+                    findAllClassFiles(folder).map(path -> className(packageName, path.getFileName().toString())).toList();
+            case PackageLocation.Jar(var jar) -> {
+                try (var jarFile = openJarFile(jar)) {
+                    yield findAllClassEntries(jarFile, packageName).stream()
+                            .map(entry -> className(packageName, entry.getName()))
+                            .toList();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    static List<Class<?>> findAllClasses(String packageName, ClassLoader classLoader) {
+        Objects.requireNonNull(packageName);
+        Objects.requireNonNull(classLoader);
+        return findPackageLocations(packageName, classLoader).stream()
+                .flatMap(location -> findAllClassNames(location, packageName).stream())
+                .<Class<?>>map(className -> Utils2.loadClass(className, classLoader))
+                .toList();
+    }
+
+    private static String className(String packageName, String path) {
+        var fileName = path.substring(path.lastIndexOf('/') + 1);
+        return packageName + '.' + fileName.substring(0, fileName.length() - ".class".length());
+    }
+
+    public <A extends Annotation> void addAction(Class<A> annotationClass, Consumer<? super Class<?>> action) {
+        Objects.requireNonNull(annotationClass);
+        Objects.requireNonNull(action);
+        var test = actionMap.putIfAbsent(annotationClass, action);
+        if (test != null) {
+            throw new IllegalStateException("Already an action for " + annotationClass.getName());
+        }
+    }
+
+    /**
+     * Scans the package of a class, the locations and the class files are read in parallel,
+     * then the actions are called in the order of the class names, on the current thread.
+     */
+    public void scanClassPathPackageForAnnotations(Class<?> classInPackage) {
+        Objects.requireNonNull(classInPackage);
+        var packageName = classInPackage.getPackageName();
+        var classLoader = classInPackage.getClassLoader();
+        var actionsByName = new HashMap<String, Consumer<? super Class<?>>>();
+        actionMap.forEach((annotationClass, action) -> actionsByName.put(annotationClass.getName(), action));
+
+        var annotationsByClass = findAnnotationsByClass(packageName, classLoader);
+        for (var entry : annotationsByClass.entrySet()) {
+            var actions = entry.getValue().stream()
+                    .<Consumer<? super Class<?>>>map(actionsByName::get)
+                    .filter(Objects::nonNull)
+                    .toList();
+            if (actions.isEmpty()) {
+                continue;
+            }
+            var type = Utils2.loadClass(entry.getKey(), classLoader);
+            actions.forEach(action -> action.accept(type));
+        }
+    }
+
+    record ClassAnnotations(String className, Set<String> annotations) {}
+
+    /**
+     * Returns the names of the annotations of each class of a package sorted by class name.
+     */
+    static SortedMap<String, Set<String>> findAnnotationsByClass(String packageName, ClassLoader classLoader) {
+        return findPackageLocations(packageName, classLoader).parallelStream()
+                .flatMap(location -> readAnnotations(location, packageName))
+                .collect(Collectors.toMap(ClassAnnotations::className, ClassAnnotations::annotations,
+                        (annotations1, annotations2) -> annotations1, TreeMap::new));
+    }
+
+    static Stream<ClassAnnotations> readAnnotations(PackageLocation location, String packageName) {
+        return switch (location) {
+            case PackageLocation.Folder(var folder) -> {
+                var index = rootFolder(folder, packageName.replace('.', '/')).resolve(INDEX);
+                yield Files.exists(index) ?
+                        readIndex(index, packageName) :
+                        readClassFiles(folder, packageName);
+            }
+            case PackageLocation.Jar(var jar) -> readJar(jar, packageName).stream();
+        };
+    }
+
+    private static Path rootFolder(Path packageFolder, String packagePath) {
+        var root = packageFolder;
+        for (var i = packagePath.split("/").length; --i >= 0;) {
+            root = root.getParent();
+        }
+        return root;
+    }
+
+    static Stream<ClassAnnotations> readIndex(Path index, String packageName) {
+        try {
+            return parseIndex(Files.readAllLines(index), packageName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Stream<ClassAnnotations> parseIndex(List<String> lines, String packageName) {
+        return lines.stream()
+                .filter(line -> !line.isBlank())
+                .map(line -> line.split(" "))
+                .filter(parts -> packageName(parts[0]).equals(packageName))
+                .collect(Collectors.groupingBy(parts -> parts[0],
+                        Collectors.mapping(parts -> parts[1], Collectors.toUnmodifiableSet())))
+                .entrySet().stream()
+                .map(entry -> new ClassAnnotations(entry.getKey(), entry.getValue()));
+    }
+
+    private static String packageName(String className) {
+        var index = className.lastIndexOf('.');
+        return index == -1 ? "" : className.substring(0, index);
+    }
+
+    static Stream<ClassAnnotations> readClassFiles(Path folder, String packageName) {
+        return findAllClassFiles(folder)
+                .parallel()
+                .map(path -> {
+                    try (var input = Files.newInputStream(path)) {
+                        return new ClassAnnotations(className(packageName, path.getFileName().toString()),
+                                annotationNames(ClassFileAnnotations.annotationDescriptors(input)));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Reads the index or the class file entries of a jar, the entries are read in parallel
+     * and all the entries are read before the jar is closed.
+     */
+    static List<ClassAnnotations> readJar(Path jar, String packageName) {
+        try (var jarFile = openJarFile(jar)) {
+            var index = jarFile.getJarEntry(INDEX);
+            if (index != null) {
+                try (var reader = new BufferedReader(
+                        new InputStreamReader(jarFile.getInputStream(index), StandardCharsets.UTF_8))) {
+                    return parseIndex(reader.lines().toList(), packageName).toList();
+                }
+            }
+            return findAllClassEntries(jarFile, packageName).parallelStream()
+                    .map(entry -> {
+                        try (var input = jarFile.getInputStream(entry)) {
+                            return new ClassAnnotations(className(packageName, entry.getName()),
+                                    annotationNames(ClassFileAnnotations.annotationDescriptors(input)));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        Files.newDirectoryStream(folder).forEach(path -> System.out.println(path.getFileName()));
+    }
 
-        return null;
+    private static Set<String> annotationNames(Set<String> descriptors) {
+        return descriptors.stream()
+                .map(descriptor -> descriptor.substring(1, descriptor.length() - 1).replace('/', '.'))
+                .collect(Collectors.toUnmodifiableSet());
     }
-    // TODO
 }
@@ -0,0 +1,44 @@
+package com.github.forax.framework.injector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.classfile.AttributedElement;
+import java.lang.classfile.Attributes;
+import java.lang.classfile.ClassFile;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the annotations of a class directly from its class file with the Class-File API, without loading the class.
+ *
+ * Only the attributes of the class, of the fields and of the methods are read.
+ */
+final class ClassFileAnnotations {
+  private ClassFileAnnotations() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the descriptors (e.g. {@code Lcom/acme/Entity;}) of the annotations visible at runtime
+   * of the class and of its fields, constructors and methods.
+   */
+  static Set<String> annotationDescriptors(InputStream inputStream) throws IOException {
+    var bytes = inputStream.readAllBytes();
+    try {
+      var classModel = ClassFile.of().parse(bytes);
+      var descriptors = new HashSet<String>();
+      addAnnotationDescriptors(classModel, descriptors);
+      classModel.fields().forEach(field -> addAnnotationDescriptors(field, descriptors));
+      classModel.methods().forEach(method -> addAnnotationDescriptors(method, descriptors));
+      return descriptors;
+    } catch (IllegalArgumentException e) {  // the class file is parsed lazily
+      throw new IOException("not a valid class file", e);
+    }
+  }
+
+  private static void addAnnotationDescriptors(AttributedElement element, Set<String> descriptors) {
+    element.findAttribute(Attributes.runtimeVisibleAnnotations())
+        .ifPresent(attribute -> attribute.annotations()
+            .forEach(annotation -> descriptors.add(annotation.className().stringValue())));
+  }
+}
@@ -0,0 +1,55 @@
+package com.github.forax.framework.injector;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Creates the instances of a class registered with {@link InjectorRegistry#registerProviderClass(Class, Class)}.
+ *
+ * For each class with a constructor or a setter annotated with {@link Inject}, {@link InjectorFactoryProcessor}
+ * generates at compile time an implementation named like the class followed by {@value #SUFFIX},
+ * that calls the constructor and the setters directly, so no reflection is needed at runtime.
+ *
+ * The processor is declared as a service of the injector jar, but since JDK 23 javac does not run
+ * the processors found on the class path unless the annotation processing is enabled.
+ * A project should compile with {@code -proc:full}, or declare the injector in the
+ * {@code annotationProcessorPaths} of the maven-compiler-plugin, otherwise no factory is generated
+ * and the registry falls back to the reflection.
+ *
+ * @param <T> the type of the instances
+ */
+public interface InjectorFactory<T> {
+    /**
+     * The suffix of the name of a generated factory.
+     */
+    String SUFFIX = "$$InjectorFactory";
+
+    /**
+     * A dependency of a class, a deferred dependency is injected as a {@link Supplier},
+     * so it is not created when the instance that depends on it is created.
+     *
+     * @param type the registered type of the dependency
+     * @param deferred true if the dependency is injected as a supplier
+     */
+    record Dependency(Class<?> type, boolean deferred) {
+        public Dependency {
+            Objects.requireNonNull(type);
+        }
+    }
+
+    /**
+     * Returns the dependencies, the arguments of the constructor first, then the arguments of the setters.
+     *
+     * @return the dependencies in the order of {@link #create(Object[])}
+     */
+    List<Dependency> dependencies();
+
+    /**
+     * Creates an instance, calls the constructor then the setters.
+     *
+     * @param dependencies the values of the dependencies, the supplier for a deferred dependency
+     * @return a new instance
+     */
+    T create(Object[] dependencies);
+}
@@ -0,0 +1,272 @@
+package com.github.forax.framework.injector;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * An annotation processor that generates an {@link InjectorFactory} for each class with a constructor
+ * or a setter annotated with {@link Inject}, the factory calls the constructor and the setters directly.
+ *
+ * The constructor and the setters are the ones {@link InjectorRegistry#registerProviderClass(Class, Class)}
+ * finds by reflection: the public constructor annotated with {@link Inject} or the public constructor
+ * without parameter, then the public setters annotated with {@link Inject} in the order of their properties.
+ * No factory is generated for a class that can not be created from its package (abstract, private, local
+ * or inner class) or that is not supported by the registry, the registry uses the reflection for those classes.
+ */
+public final class InjectorFactoryProcessor extends AbstractProcessor {
+    private static final String FACTORY = InjectorFactory.class.getName();
+    private static final String DEPENDENCY = FACTORY + ".Dependency";
+
+    private final HashSet<String> generated = new HashSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Set.of(Inject.class.getName());
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        var types = new LinkedHashSet<TypeElement>();
+        for (var element : roundEnv.getElementsAnnotatedWith(Inject.class)) {
+            if (element.getEnclosingElement() instanceof TypeElement type) {
+                types.add(type);
+            }
+        }
+        for (var type : types) {
+            if (generated.add(type.getQualifiedName().toString())) {
+                generateFactory(type);
+            }
+        }
+        return false;  // other processors can process the same annotations
+    }
+
+    private void generateFactory(TypeElement type) {
+        if (!isCreatable(type)) {
+            return;
+        }
+        var constructor = findConstructor(type);
+        if (constructor == null) {
+            return;
+        }
+        var setters = findSetters(type);
+        var executables = new ArrayList<ExecutableElement>();
+        executables.add(constructor);
+        executables.addAll(setters);
+        if (executables.stream().anyMatch(executable -> !executable.getThrownTypes().isEmpty())) {
+            return;  // can not be called without a try/catch
+        }
+        var packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        var parameterTypes = new ArrayList<TypeMirror>(constructor.getParameters().stream().map(Element::asType).toList());
+        setters.forEach(setter -> parameterTypes.add(setter.getParameters().getFirst().asType()));
+        var dependencies = new ArrayList<String>();
+        for (var parameterType : parameterTypes) {
+            var dependency = dependency(parameterType, packageElement);
+            if (dependency == null) {
+                return;
+            }
+            dependencies.add(dependency);
+        }
+
+        var packageName = packageElement.getQualifiedName().toString();
+        var binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        var factoryName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + InjectorFactory.SUFFIX;
+        var typeName = type.getQualifiedName().toString();
+
+        var builder = new StringBuilder();
+        builder.append("// generated by ").append(InjectorFactoryProcessor.class.getName()).append('\n');
+        if (!packageName.isEmpty()) {
+            builder.append("package ").append(packageName).append(";\n\n");
+        }
+        builder.append("@java.lang.SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+                .append("public final class ").append(factoryName).append(" implements ").append(FACTORY).append('<').append(typeName).append("> {\n")
+                .append("    private static final java.util.List<").append(DEPENDENCY).append("> DEPENDENCIES = java.util.List.of(");
+        for (var i = 0; i < dependencies.size(); i++) {
+            builder.append(i == 0 ? "\n            " : ",\n            ").append(dependencies.get(i));
+        }
+        builder.append(");\n\n")
+                .append("    @java.lang.Override\n")
+                .append("    public java.util.List<").append(DEPENDENCY).append("> dependencies() {\n")
+                .append("        return DEPENDENCIES;\n")
+                .append("    }\n\n")
+                .append("    @java.lang.Override\n")
+                .append("    public ").append(typeName).append(" create(java.lang.Object[] dependencies) {\n")
+                .append("        ").append(typeName).append(" instance = new ").append(typeName).append('(');
+        var index = 0;
+        for (; index < constructor.getParameters().size(); index++) {
+            builder.append(index == 0 ? "" : ", ").append(argument(parameterTypes.get(index), index));
+        }
+        builder.append(");\n");
+        for (var setter : setters) {
+            builder.append("        instance.").append(setter.getSimpleName()).append('(')
+                    .append(argument(parameterTypes.get(index), index)).append(");\n");
+            index++;
+        }
+        builder.append("        return instance;\n")
+                .append("    }\n")
+                .append("}\n");
+
+        var qualifiedFactoryName = packageName.isEmpty() ? factoryName : packageName + '.' + factoryName;
+        try {
+            var sourceFile = processingEnv.getFiler().createSourceFile(qualifiedFactoryName, type);
+            try (var writer = sourceFile.openWriter()) {
+                writer.write(builder.toString());
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "can not write " + qualifiedFactoryName + " " + e, type);
+        }
+    }
+
+    private static boolean isCreatable(TypeElement type) {
+        if ((type.getKind() != ElementKind.CLASS && type.getKind() != ElementKind.RECORD)
+                || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        var isStatic = switch (type.getNestingKind()) {
+            case TOP_LEVEL -> true;
+            case MEMBER -> type.getKind() == ElementKind.RECORD || type.getModifiers().contains(Modifier.STATIC);
+            case LOCAL, ANONYMOUS -> false;
+        };
+        return isStatic && isAccessible(type.asType(), packageOf(type));
+    }
+
+    private static ExecutableElement findConstructor(TypeElement type) {
+        var constructors = ElementFilter.constructorsIn(type.getEnclosedElements()).stream()
+                .filter(constructor -> constructor.getModifiers().contains(Modifier.PUBLIC))
+                .toList();
+        var injectConstructors = constructors.stream()
+                .filter(constructor -> constructor.getAnnotation(Inject.class) != null)
+                .toList();
+        return switch (injectConstructors.size()) {
+            case 0 -> constructors.stream()
+                    .filter(constructor -> constructor.getParameters().isEmpty())
+                    .findFirst()
+                    .orElse(null);
+            case 1 -> injectConstructors.getFirst();
+            default -> null;  // rejected by the registry
+        };
+    }
+
+    private List<ExecutableElement> findSetters(TypeElement type) {
+        return ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type)).stream()
+                .filter(method -> method.getAnnotation(Inject.class) != null && isSetter(method))
+                .sorted(Comparator.comparing(InjectorFactoryProcessor::propertyName))
+                .toList();
+    }
+
+    private static boolean isSetter(ExecutableElement method) {
+        var name = method.getSimpleName().toString();
+        return method.getModifiers().contains(Modifier.PUBLIC)
+                && !method.getModifiers().contains(Modifier.STATIC)
+                && name.startsWith("set") && name.length() > 3
+                && method.getParameters().size() == 1
+                && method.getReturnType().getKind() == TypeKind.VOID;
+    }
+
+    /**
+     * Returns the name of the property of a setter, like {@link java.beans.Introspector#decapitalize(String)}.
+     */
+    private static String propertyName(ExecutableElement setter) {
+        var name = setter.getSimpleName().toString().substring(3);
+        if (name.length() > 1 && Character.isUpperCase(name.charAt(0)) && Character.isUpperCase(name.charAt(1))) {
+            return name;
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static boolean isAccessible(TypeMirror type, PackageElement packageElement) {
+        return switch (type) {
+            case ArrayType arrayType -> isAccessible(arrayType.getComponentType(), packageElement);
+            case DeclaredType declaredType -> {
+                for (Element element = declaredType.asElement(); element instanceof TypeElement typeElement; element = element.getEnclosingElement()) {
+                    var modifiers = typeElement.getModifiers();
+                    if (modifiers.contains(Modifier.PUBLIC)) {
+                        continue;
+                    }
+                    if (modifiers.contains(Modifier.PRIVATE) || !packageOf(typeElement).equals(packageElement)) {
+                        yield false;
+                    }
+                }
+                yield true;
+            }
+            default -> type.getKind().isPrimitive();
+        };
+    }
+
+    private static PackageElement packageOf(Element element) {
+        while (!(element instanceof PackageElement packageElement)) {
+            element = element.getEnclosingElement();
+        }
+        return packageElement;
+    }
+
+    /**
+     * Returns the source of the {@link InjectorFactory.Dependency} of a parameter or null
+     * if the registry can not inject the parameter or if its type is not accessible from the package.
+     */
+    private String dependency(TypeMirror parameterType, PackageElement packageElement) {
+        if (parameterType instanceof DeclaredType declaredType
+                && ((TypeElement) declaredType.asElement()).getQualifiedName().contentEquals(Supplier.class.getName())
+                && !declaredType.getTypeArguments().isEmpty()) {
+            var typeArgument = declaredType.getTypeArguments().getFirst();
+            if (typeArgument instanceof WildcardType wildcardType) {
+                typeArgument = wildcardType.getExtendsBound() == null ?
+                        processingEnv.getElementUtils().getTypeElement(Object.class.getName()).asType() :
+                        wildcardType.getExtendsBound();
+            }
+            var typeName = typeName(typeArgument);
+            return typeName == null || !isAccessible(typeArgument, packageElement) ? null : "new " + DEPENDENCY + '(' + typeName + ".class, true)";
+        }
+        var typeName = typeName(parameterType);
+        return typeName == null || !isAccessible(parameterType, packageElement) ? null : "new " + DEPENDENCY + '(' + typeName + ".class, false)";
+    }
+
+    /**
+     * Returns the name of the erasure of a type or null for a type variable or a generic array,
+     * like the registry that can not inject them.
+     */
+    private static String typeName(TypeMirror type) {
+        return switch (type) {
+            case ArrayType arrayType -> {
+                if (arrayType.getComponentType() instanceof DeclaredType componentType && !componentType.getTypeArguments().isEmpty()) {
+                    yield null;
+                }
+                var componentName = typeName(arrayType.getComponentType());
+                yield componentName == null ? null : componentName + "[]";
+            }
+            case DeclaredType declaredType -> ((TypeElement) declaredType.asElement()).getQualifiedName().toString();
+            default -> type.getKind().isPrimitive() ? type.getKind().name().toLowerCase(Locale.ROOT) : null;
+        };
+    }
+
+    private static String argument(TypeMirror parameterType, int index) {
+        return "(" + typeName(parameterType) + ") dependencies[" + index + ']';
+    }
+}
@@ -1,13 +1,42 @@
 package com.github.forax.framework.injector;
 
+import com.github.forax.framework.injector.InjectorFactory.Dependency;
+
 import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.lang.reflect.WildcardType;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+/**
+ * A registry of the recipes to create instances.
+ *
+ * The registration is not thread-safe, {@link #build()} freezes the registry into an immutable map,
+ * after that, {@link #lookupInstance(Class)} can be called concurrently without any lock.
+ *
+ * A class registered with {@link #registerProviderClass(Class, Class)} is created by the {@link InjectorFactory}
+ * generated at compile time if it exists, otherwise the constructor and the setters are found by reflection.
+ *
+ * The instances of a class annotated with {@link RequestScoped} or {@link ThreadScoped} are stored
+ * in the request bound to the current thread by {@link #runInRequest(Runnable)}, so they are released
+ * at the end of the request, and they can not be looked up outside a request.
+ */
 public final class InjectorRegistry {
-    private final Map<Class<?>, Supplier<Object>> registry = new HashMap<>();
+    private volatile Map<Class<?>, Supplier<Object>> registry = new HashMap<>();
+    private boolean frozen;
+    private final ScopedValue<Map<Object, SingletonSupplier>> request = ScopedValue.newInstance();
 
     static List<PropertyDescriptor> findInjectableProperties(Class<?> type) {
         Objects.requireNonNull(type);
@@ -24,26 +53,33 @@ public final class InjectorRegistry {
     public <T> void registerInstance(Class<T> type, T instance) {
         Objects.requireNonNull(type, "type is null");
         Objects.requireNonNull(instance, "instance is null");
-        var test = registry.putIfAbsent(type, () -> instance);
-        if (test != null) {
-            throw new IllegalStateException("Already an instance for " + type.getName());
-        }
+        register(type, () -> instance);
     }
 
     public <T> T lookupInstance(Class<T> type) {
         Objects.requireNonNull(type, "type is null");
+        return type.cast(findSupplier(type).get());
+    }
 
+    private Supplier<Object> findSupplier(Class<?> type) {
         var supplier = registry.get(type);
         if (supplier == null) {
             throw new IllegalStateException("No supplier for class " + type.getName());
         }
-        return type.cast(supplier.get());
+        return supplier;
     }
 
     public <T> void registerProvider(Class<T> type, Supplier<? extends T> supplier) {
         Objects.requireNonNull(type, "type is null");
         Objects.requireNonNull(supplier, "supplier is null");
-        var test = registry.putIfAbsent(type, supplier::get);
+        register(type, supplier::get);
+    }
+
+    private void register(Class<?> type, Supplier<Object> supplier) {
+        if (frozen) {
+            throw new IllegalStateException("the registry is frozen, no registration after build()");
+        }
+        var test = registry.putIfAbsent(type, supplier);
         if (test != null) {
             throw new IllegalStateException("Already an instance for " + type.getName());
         }
@@ -62,33 +98,445 @@ public final class InjectorRegistry {
         Objects.requireNonNull(type);
         Objects.requireNonNull(clazz);
 
+        var factory = findGeneratedFactory(clazz);
+        if (factory == null) {
+            factory = reflectiveFactory(clazz);
+        }
+        Supplier<Object> supplier = new ProviderClassSupplier(factory);
+        if (clazz.isAnnotationPresent(Lazy.class)) {
+            if (!type.isInterface()) {
+                throw new IllegalStateException("a @Lazy class should be registered with an interface " + type.getName());
+            }
+            supplier = new LazySupplier(type, supplier);
+        }
+        var scopes = Stream.of(Singleton.class, RequestScoped.class, ThreadScoped.class)
+                .filter(clazz::isAnnotationPresent)
+                .toList();
+        if (scopes.size() > 1) {
+            throw new IllegalStateException("only one scope is allowed " + clazz.getName() + " " + scopes);
+        }
+        if (clazz.isAnnotationPresent(Singleton.class)) {
+            supplier = new SingletonSupplier(supplier);
+        }
+        if (clazz.isAnnotationPresent(RequestScoped.class) || clazz.isAnnotationPresent(ThreadScoped.class)) {
+            supplier = new RequestScopedSupplier(supplier, clazz.isAnnotationPresent(ThreadScoped.class));
+        }
+        register(type, supplier);
+    }
+
+    /**
+     * Returns the factory generated by {@link InjectorFactoryProcessor} for a class or null.
+     */
+    static InjectorFactory<?> findGeneratedFactory(Class<?> clazz) {
+        Class<?> factoryClass;
+        try {
+            factoryClass = Class.forName(clazz.getName() + InjectorFactory.SUFFIX, false, clazz.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        return (InjectorFactory<?>) Utils.newInstance(Utils.defaultConstructor(factoryClass));
+    }
+
+    private static InjectorFactory<?> reflectiveFactory(Class<?> clazz) {
         var constructors = Arrays.stream(clazz.getConstructors())
                 .filter(constructor -> constructor.isAnnotationPresent(Inject.class))
                 .toList();
 
         var constructor = switch (constructors.size()) {
             case 0 -> Utils.defaultConstructor(clazz);
-            case 1 -> (Constructor<? extends T>) constructors.get(0);
+            case 1 -> constructors.get(0);
             default -> throw new IllegalStateException("Multiple constructors possible");
         };
 
-//        var constructor = Utils.defaultConstructor(clazz);
+        var setters = findInjectableProperties(clazz).stream()
+                .map(PropertyDescriptor::getWriteMethod)
+                .toArray(Method[]::new);
+        var dependencies = Stream.concat(
+                Arrays.stream(constructor.getGenericParameterTypes()),
+                Arrays.stream(setters).map(setter -> setter.getGenericParameterTypes()[0])
+        ).map(InjectorRegistry::dependency).toList();
+        return new MethodHandleFactory(compileFactory(constructor, setters), dependencies);
+    }
+
+    /**
+     * Runs an action in a new request, the instances of the classes annotated with {@link RequestScoped} are
+     * shared by all the lookups done by the action, including by the threads forked with a
+     * {@link java.util.concurrent.StructuredTaskScope}, the instances of the classes annotated with
+     * {@link ThreadScoped} are shared by the lookups done by the same thread.
+     *
+     * @param action the action to run
+     */
+    public void runInRequest(Runnable action) {
+        Objects.requireNonNull(action);
+        ScopedValue.where(request, new ConcurrentHashMap<>()).run(action);
+    }
+
+    /**
+     * Checks that all the dependencies of the provider classes are registered, that there is no cycle
+     * and that no singleton depends on a request or thread scoped instance, unless it is injected as a {@link Supplier}.
+     *
+     * @throws IllegalStateException if a dependency is missing, if there is a cycle or if a singleton
+     *                               depends on a request or thread scoped instance
+     */
+    public void validate() {
+        topologicalOrder();
+    }
+
+    /**
+     * Validates the registry, freezes it, then creates all the singletons, a singleton is created after
+     * the singletons it depends on, the independent singletons are created in parallel.
+     *
+     * @throws IllegalStateException if a dependency is missing, if there is a cycle or if a singleton
+     *                               depends on a request or thread scoped instance
+     */
+    public void build() {
+        var order = topologicalOrder();
+        frozen = true;
+        registry = Map.copyOf(registry);
+
+        var futures = new HashMap<Class<?>, CompletableFuture<Void>>();
+        for (var type : order) {
+            if (registry.get(type) instanceof SingletonSupplier singleton) {
+                var dependencies = singletonDependencies(type, new HashSet<>(), new ArrayList<>()).stream()
+                        .map(futures::get)
+                        .toArray(CompletableFuture<?>[]::new);
+                futures.put(type, CompletableFuture.allOf(dependencies).thenRunAsync(singleton::get));
+            }
+        }
+        try {
+            CompletableFuture.allOf(futures.values().toArray(CompletableFuture<?>[]::new)).join();
+        } catch (CompletionException e) {
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            switch (cause) {
+                case RuntimeException runtimeException -> throw runtimeException;
+                case Error error -> throw error;
+                default -> throw new UndeclaredThrowableException(cause);
+            }
+        }
+    }
+
+    private static Dependency dependency(Type parameterType) {
+        if (parameterType instanceof ParameterizedType parameterizedType && parameterizedType.getRawType() == Supplier.class) {
+            return new Dependency(rawType(parameterizedType.getActualTypeArguments()[0]), true);
+        }
+        return new Dependency(rawType(parameterType), false);
+    }
+
+    private static Class<?> rawType(Type type) {
+        return switch (type) {
+            case Class<?> clazz -> clazz;
+            case ParameterizedType parameterizedType -> rawType(parameterizedType.getRawType());
+            case WildcardType wildcardType -> rawType(wildcardType.getUpperBounds()[0]);
+            default -> throw new IllegalStateException("can not inject a value of type " + type.getTypeName());
+        };
+    }
+
+    private static List<Dependency> dependencies(Supplier<?> supplier) {
+        return switch (supplier) {
+            case SingletonSupplier singleton -> dependencies(singleton.supplier);
+            case RequestScopedSupplier scoped -> dependencies(scoped.supplier);
+            case LazySupplier lazy -> dependencies(lazy.supplier).stream()
+                    .map(dependency -> new Dependency(dependency.type(), true))
+                    .toList();
+            case ProviderClassSupplier provider -> provider.dependencies;
+            default -> List.of();
+        };
+    }
+
+    /**
+     * Returns the registered types, each type after its dependencies (depth first search).
+     */
+    private List<Class<?>> topologicalOrder() {
+        var order = new ArrayList<Class<?>>();
+        var visited = new HashSet<Class<?>>();
+        var path = new ArrayList<Class<?>>();
+        var scopedPaths = new HashMap<Class<?>, List<Class<?>>>();
+        for (var type : registry.keySet()) {
+            visit(type, visited, path, order, scopedPaths);
+        }
+        return order;
+    }
 
+    /**
+     * Visits the dependencies of a type, {@code scopedPaths} records for each visited type that needs
+     * a request or thread scoped instance to be created, the path from the type to that instance.
+     * A singleton can not need such an instance, it would keep the instance of the first request.
+     */
+    private void visit(Class<?> type, Set<Class<?>> visited, List<Class<?>> path, List<Class<?>> order,
+                       Map<Class<?>, List<Class<?>>> scopedPaths) {
+        if (visited.contains(type)) {
+            return;
+        }
+        var index = path.indexOf(type);
+        if (index != -1) {
+            var cycle = new ArrayList<>(path.subList(index, path.size()));
+            cycle.add(type);
+            throw new IllegalStateException("Cycle detected " +
+                    String.join(" -> ", cycle.stream().map(Class::getName).toList()));
+        }
+        path.add(type);
+        var supplier = registry.get(type);
+        List<Class<?>> scopedPath = supplier instanceof RequestScopedSupplier ? List.of(type) : null;
+        for (var dependency : dependencies(supplier)) {
+            if (!registry.containsKey(dependency.type())) {
+                throw new IllegalStateException("No supplier for class " + dependency.type().getName() +
+                        " required by " + type.getName());
+            }
+            if (!dependency.deferred()) {  // a deferred dependency can be a cycle
+                visit(dependency.type(), visited, path, order, scopedPaths);
+                var dependencyPath = scopedPaths.get(dependency.type());
+                if (scopedPath == null && dependencyPath != null) {
+                    scopedPath = Stream.concat(Stream.of(type), dependencyPath.stream()).toList();
+                }
+            }
+        }
+        if (scopedPath == null && isLazy(supplier)) {
+            // the dependencies of a lazy instance are deferred, but the proxy keeps them once the instance is created
+            scopedPath = lazyScopedPath(type, supplier, new HashSet<>());
+        }
+        if (scopedPath != null) {
+            if (supplier instanceof SingletonSupplier) {
+                throw new IllegalStateException("Scope widening " +
+                        String.join(" -> ", scopedPath.stream().map(Class::getName).toList()) +
+                        ", a singleton can not depend on a request or thread scoped instance, inject a Supplier instead");
+            }
+            scopedPaths.put(type, scopedPath);
+        }
+        path.removeLast();
+        visited.add(type);
+        order.add(type);
+    }
 
-        Supplier<T> supplier  = () -> {
-            var args = Arrays.stream(constructor.getParameterTypes())
-                    .map(this::lookupInstance)
-                    .toArray();
-            var instance = Utils.newInstance(constructor, args);
-            findInjectableProperties(clazz).stream()
-                    .map(PropertyDescriptor::getWriteMethod)
-                    .forEach(setter -> Utils.invokeMethod(instance, setter, lookupInstance(setter.getParameterTypes()[0])));
+    private static boolean isLazy(Supplier<?> supplier) {
+        return supplier instanceof LazySupplier
+                || (supplier instanceof SingletonSupplier singleton && singleton.supplier instanceof LazySupplier);
+    }
 
-            return instance;
+    /**
+     * Returns the path from a type to a request or thread scoped instance it needs to be created,
+     * following the dependencies of the lazy instances, or null if there is no such path.
+     * The cycles are allowed through a lazy instance, so the types already visited are skipped.
+     */
+    private List<Class<?>> lazyScopedPath(Class<?> type, Supplier<?> supplier, Set<Class<?>> visited) {
+        if (supplier instanceof RequestScopedSupplier) {
+            return List.of(type);
+        }
+        if (!visited.add(type)) {
+            return null;
+        }
+        var dependencies = switch (supplier) {
+            case SingletonSupplier singleton when singleton.supplier instanceof LazySupplier lazy -> dependencies(lazy.supplier);
+            case LazySupplier lazy -> dependencies(lazy.supplier);
+            default -> dependencies(supplier);
         };
+        for (var dependency : dependencies) {
+            var dependencySupplier = registry.get(dependency.type());
+            if (dependency.deferred() || dependencySupplier == null) {  // a missing dependency is reported by visit()
+                continue;
+            }
+            var dependencyPath = lazyScopedPath(dependency.type(), dependencySupplier, visited);
+            if (dependencyPath != null) {
+                return Stream.concat(Stream.of(type), dependencyPath.stream()).toList();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the singletons a type depends on, directly or through instances that are not singletons,
+     * the deferred dependencies are not needed to create an instance.
+     */
+    private List<Class<?>> singletonDependencies(Class<?> type, Set<Class<?>> visited, List<Class<?>> singletons) {
+        for (var dependency : dependencies(registry.get(type))) {
+            if (!dependency.deferred() && visited.add(dependency.type())) {
+                if (registry.get(dependency.type()) instanceof SingletonSupplier) {
+                    singletons.add(dependency.type());
+                } else {
+                    singletonDependencies(dependency.type(), visited, singletons);
+                }
+            }
+        }
+        return singletons;
+    }
+
+    private static MethodHandle arrayElement(int index, Class<?> type) {
+        var getter = MethodHandles.insertArguments(MethodHandles.arrayElementGetter(Object[].class), 1, index);
+        return getter.asType(MethodType.methodType(type, Object[].class));
+    }
+
+    /**
+     * Compiles the creation of an instance into one method handle that takes the dependencies
+     * as an array, the arguments of the constructor first then the arguments of the setters,
+     * calls the constructor, then the setters in order and returns the instance.
+     */
+    static MethodHandle compileFactory(Constructor<?> constructor, Method[] setters) {
+        var type = constructor.getDeclaringClass();
+        var parameterCount = constructor.getParameterCount();
+
+        // (type, Object[])type
+        var target = MethodHandles.dropArguments(MethodHandles.identity(type), 1, Object[].class);
+        for (var i = setters.length; --i >= 0;) {  // folded in reverse order, so called in order
+            var setter = Utils.unreflect(setters[i]);
+            var parameterType = setter.type().parameterType(1);
+            // (type, Object[])void
+            var combiner = MethodHandles.filterArguments(setter.asType(MethodType.methodType(void.class, type, parameterType)),
+                    1, arrayElement(parameterCount + i, parameterType));
+            target = MethodHandles.foldArguments(target, combiner);
+        }
+
+        // (Object[])type
+        var factory = Utils.unreflectConstructor(constructor);
+        for (var i = 0; i < parameterCount; i++) {
+            factory = MethodHandles.filterArguments(factory, i, arrayElement(i, factory.type().parameterType(i)));
+        }
+        factory = MethodHandles.permuteArguments(factory, MethodType.methodType(type, Object[].class), new int[parameterCount]);
+
+        target = MethodHandles.foldArguments(target, factory);
+        return target.asType(MethodType.methodType(Object.class, Object[].class));
+    }
+
+    /**
+     * The factory of a class without a generated factory, the constructor and the setters
+     * are compiled once at registration in a method handle.
+     */
+    private record MethodHandleFactory(MethodHandle factory, List<Dependency> dependencies) implements InjectorFactory<Object> {
+        @Override
+        public Object create(Object[] dependencies) {
+            try {
+                return (Object) factory.invokeExact(dependencies);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+    }
+
+    /**
+     * Creates the instances of a class registered with {@link #registerProviderClass(Class, Class)} with its factory.
+     * The suppliers of the dependencies are resolved at the first lookup, because a dependency
+     * can be registered after the class that depends on it.
+     * The supplier of a deferred dependency is injected instead of an instance.
+     */
+    private final class ProviderClassSupplier implements Supplier<Object> {
+        private final InjectorFactory<?> factory;
+        private final List<Dependency> dependencies;
+        private volatile Supplier<?>[] suppliers;
 
+        private ProviderClassSupplier(InjectorFactory<?> factory) {
+            this.factory = factory;
+            this.dependencies = List.copyOf(factory.dependencies());
+        }
+
+        private Supplier<?>[] suppliers() {
+            var suppliers = this.suppliers;
+            if (suppliers == null) {
+                // racy but idempotent, the registered suppliers never change
+                suppliers = dependencies.stream()
+                        .map(dependency -> findSupplier(dependency.type()))
+                        .toArray(Supplier<?>[]::new);
+                this.suppliers = suppliers;
+            }
+            return suppliers;
+        }
+
+        @Override
+        public Object get() {
+            var suppliers = suppliers();
+            var args = new Object[suppliers.length];
+            for (var i = 0; i < args.length; i++) {
+                args[i] = dependencies.get(i).deferred() ? suppliers[i] : suppliers[i].get();
+            }
+            return factory.create(args);
+        }
+    }
+
+    /**
+     * Creates the instance at the first lookup (double-checked locking),
+     * the next lookups are only a volatile read.
+     */
+    private static final class SingletonSupplier implements Supplier<Object> {
+        private final Supplier<?> supplier;
+        private final Object lock = new Object();
+        private volatile Object instance;
+
+        private SingletonSupplier(Supplier<?> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public Object get() {
+            var instance = this.instance;
+            if (instance != null) {
+                return instance;
+            }
+            synchronized (lock) {
+                instance = this.instance;
+                if (instance == null) {
+                    instance = supplier.get();
+                    this.instance = instance;
+                }
+                return instance;
+            }
+        }
+    }
 
-        registerProvider(type, supplier);
+    /**
+     * Returns a proxy that creates the instance at the first call of one of its methods, see {@link Lazy}.
+     */
+    private static final class LazySupplier implements Supplier<Object> {
+        private final Class<?> type;
+        private final Supplier<?> supplier;
+
+        private LazySupplier(Class<?> type, Supplier<?> supplier) {
+            this.type = type;
+            this.supplier = supplier;
+        }
+
+        @Override
+        public Object get() {
+            var holder = new SingletonSupplier(supplier);
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+                // the methods of Object do not create the instance, the proxy has its own identity
+                if (method.getDeclaringClass() == Object.class) {
+                    return switch (method.getName()) {
+                        case "equals" -> proxy == args[0];
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "toString" -> "Lazy " + type.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                        default -> throw new AssertionError(method);
+                    };
+                }
+                return Utils.invokeMethod(holder.get(), method, args);
+            });
+        }
+    }
+
+    private record ThreadKey(Object binding, Thread thread) {}
+
+    /**
+     * Creates the instance once per request, or once per thread of a request.
+     */
+    private final class RequestScopedSupplier implements Supplier<Object> {
+        private final Supplier<?> supplier;
+        private final boolean perThread;
+
+        private RequestScopedSupplier(Supplier<?> supplier, boolean perThread) {
+            this.supplier = supplier;
+            this.perThread = perThread;
+        }
+
+        @Override
+        public Object get() {
+            if (!request.isBound()) {
+                throw new IllegalStateException("no request in progress, see runInRequest()");
+            }
+            var key = perThread ? new ThreadKey(this, Thread.currentThread()) : this;
+            // the instance is not created inside computeIfAbsent because it can lookup other scoped instances
+            return request.get().computeIfAbsent(key, __ -> new SingletonSupplier(supplier)).get();
+        }
     }
     // TODO
 }
@@ -0,0 +1,18 @@
+package com.github.forax.framework.injector;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a class registered with {@link InjectorRegistry#registerProviderClass(Class, Class)}
+ * so a lookup returns a proxy of the interface the class is registered with,
+ * the instance is created at the first call of a method of the proxy.
+ * The methods {@code equals}, {@code hashCode} and {@code toString} are answered by the proxy
+ * and do not create the instance.
+ */
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface Lazy { }
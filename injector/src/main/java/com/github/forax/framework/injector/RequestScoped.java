@@ -0,0 +1,15 @@
+package com.github.forax.framework.injector;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a class registered with {@link InjectorRegistry#registerProviderClass(Class, Class)}
+ * so only one instance is created by request, see {@link InjectorRegistry#runInRequest(Runnable)}.
+ */
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface RequestScoped { }
@@ -0,0 +1,17 @@
+package com.github.forax.framework.injector;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a class registered with {@link InjectorRegistry#registerProviderClass(Class, Class)}
+ * so only one instance is created by thread of a request, see {@link InjectorRegistry#runInRequest(Runnable)}.
+ * The instances are stored in the request, so like for {@link RequestScoped}, a lookup outside a request
+ * fails with an {@link IllegalStateException}.
+ */
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface ThreadScoped { }
@@ -3,6 +3,8 @@ package com.github.forax.framework.injector;
 import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -21,9 +23,9 @@ final class Utils {
     }
   }
 
-  public static void invokeMethod(Object instance, Method method, Object... args) {
+  public static Object invokeMethod(Object instance, Method method, Object... args) {
     try {
-      method.invoke(instance, args);
+      return method.invoke(instance, args);
     } catch (IllegalArgumentException e) {
       throw new AssertionError(e);
     } catch (IllegalAccessException e) {
@@ -62,6 +64,22 @@ final class Utils {
     }
   }
 
+  public static MethodHandle unreflectConstructor(Constructor<?> constructor) {
+    try {
+      return MethodHandles.lookup().unreflectConstructor(constructor);
+    } catch (IllegalAccessException e) {
+      throw (IllegalAccessError) new IllegalAccessError().initCause(e);
+    }
+  }
+
+  public static MethodHandle unreflect(Method method) {
+    try {
+      return MethodHandles.lookup().unreflect(method);
+    } catch (IllegalAccessException e) {
+      throw (IllegalAccessError) new IllegalAccessError().initCause(e);
+    }
+  }
+
   @SuppressWarnings("unchecked")   // very wrong but works
   private static <T extends Throwable> AssertionError rethrow(Throwable cause) throws T {
     throw (T) cause;
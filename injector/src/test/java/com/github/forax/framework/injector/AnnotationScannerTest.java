@@ -9,18 +9,32 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static java.util.stream.Collectors.toMap;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("unused")
 public class AnnotationScannerTest {
-/*
 
   @Nested
   public class Q1 {
@@ -195,5 +209,170 @@ public class AnnotationScannerTest {
     }
 
   }  // end of Q4
-   */
+
+  @Nested
+  public class Index {
+    @Test @Tag("Index")
+    public void indexIsGeneratedForTheTests() throws IOException {
+      var resources = Collections.list(Index.class.getClassLoader().getResources(AnnotationScanner.INDEX));
+      assertEquals(1, resources.size());
+      String content;
+      try(var input = resources.getFirst().openStream()) {
+        content = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+      }
+      var lines = content.lines().toList();
+      assertAll(
+          () -> assertTrue(lines.contains(Q4.Service.class.getName() + " " + Q4.Component.class.getName())),
+          () -> assertTrue(lines.contains(Q4.ServiceWithDependency.class.getName() + " " + Inject.class.getName())),
+          () -> assertTrue(lines.stream().noneMatch(line -> line.startsWith(Q4.NonAnnotatedDependency.class.getName() + " ")))
+      );
+    }
+
+    @Test @Tag("Index")
+    public void indexAndClassFilesAgree() throws IOException {
+      var packageName = Index.class.getPackageName();
+      var index = Path.of(Objects.requireNonNull(Index.class.getClassLoader().getResource(AnnotationScanner.INDEX)).getPath());
+      var folder = Path.of(Objects.requireNonNull(Index.class.getResource(".")).getPath());
+      var fromIndex = AnnotationScanner.readIndex(index, packageName)
+          .filter(annotations -> annotations.className().startsWith(Q4.class.getName() + "$"))
+          .collect(toMap(AnnotationScanner.ClassAnnotations::className, AnnotationScanner.ClassAnnotations::annotations));
+      var fromClassFiles = AnnotationScanner.readClassFiles(folder, packageName)
+          .filter(annotations -> annotations.className().startsWith(Q4.class.getName() + "$"))
+          .filter(annotations -> !annotations.annotations().isEmpty())
+          .collect(toMap(AnnotationScanner.ClassAnnotations::className, AnnotationScanner.ClassAnnotations::annotations));
+      assertAll(
+          () -> assertEquals(fromClassFiles, fromIndex),
+          () -> assertEquals(Set.of(Q4.Component.class.getName(), Inject.class.getName()),
+              fromIndex.get(Q4.ServiceWithDependency.class.getName()))
+      );
+    }
+
+    @Test @Tag("Index")
+    public void scanActionOnInjectMembers() {
+      var types = new ArrayList<Class<?>>();
+      var scanner  = new AnnotationScanner();
+      scanner.addAction(Inject.class, types::add);
+      scanner.scanClassPathPackageForAnnotations(Index.class);
+      assertAll(
+          () -> assertTrue(types.contains(Q4.ServiceWithDependency.class)),
+          () -> assertTrue(types.contains(InjectorRegistryTest.Q6.Circle.class)),
+          () -> assertTrue(!types.contains(Q4.Service.class))
+      );
+    }
+  }
+
+  @Nested
+  public class Jar {
+    private static byte[] classFile(Class<?> type) throws IOException {
+      var name = type.getName().substring(type.getPackageName().length() + 1) + ".class";
+      try(var input = Objects.requireNonNull(type.getResourceAsStream(name))) {
+        return input.readAllBytes();
+      }
+    }
+
+    private static Path createJar(Map<String, byte[]> entries) throws IOException {
+      var jar = Files.createTempFile("annotation-scanner", ".jar");
+      var manifest = new Manifest();
+      manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      manifest.getMainAttributes().put(Attributes.Name.MULTI_RELEASE, "true");
+      try(var output = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+        for(var directory : List.of("com/", "com/acme/", "com/acme/scan/")) {
+          output.putNextEntry(new JarEntry(directory));
+          output.closeEntry();
+        }
+        for(var entry : entries.entrySet()) {
+          output.putNextEntry(new JarEntry(entry.getKey()));
+          output.write(entry.getValue());
+          output.closeEntry();
+        }
+      }
+      return jar;
+    }
+
+    private static SortedMap<String, Set<String>> scan(Path jar) throws IOException {
+      try(var classLoader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, null)) {
+        return AnnotationScanner.findAnnotationsByClass("com.acme.scan", classLoader);
+      } finally {
+        Files.delete(jar);
+      }
+    }
+
+    @Test @Tag("Jar")
+    public void scanJar() throws IOException {
+      var jar = createJar(Map.of(
+          "com/acme/scan/Service.class", classFile(Q4.Service.class),
+          "com/acme/scan/Plain.class", classFile(Q4.NonAnnotatedDependency.class),
+          "com/acme/scan/sub/Ignored.class", classFile(Q4.Service.class)
+      ));
+      assertEquals(
+          Map.of("com.acme.scan.Service", Set.of(Q4.Component.class.getName()), "com.acme.scan.Plain", Set.of()),
+          scan(jar));
+    }
+
+    @Test @Tag("Jar")
+    public void scanMultiReleaseJar() throws IOException {
+      var jar = createJar(Map.of(
+          "com/acme/scan/Service.class", classFile(Q4.NonAnnotatedDependency.class),
+          "META-INF/versions/9/com/acme/scan/Service.class", classFile(Q4.Service.class),
+          "com/acme/scan/Plain.class", classFile(Q4.NonAnnotatedDependency.class),
+          "META-INF/versions/" + (Runtime.version().feature() + 1) + "/com/acme/scan/Plain.class", classFile(Q4.Service.class)
+      ));
+      assertEquals(
+          Map.of("com.acme.scan.Service", Set.of(Q4.Component.class.getName()), "com.acme.scan.Plain", Set.of()),
+          scan(jar));
+    }
+
+    @Test @Tag("Jar")
+    public void scanJarWithAnIndex() throws IOException {
+      var jar = createJar(Map.of(
+          "com/acme/scan/Service.class", classFile(Q4.Service.class),
+          AnnotationScanner.INDEX, "com.acme.scan.Service com.acme.Marker\ncom.acme.other.Other com.acme.Marker\n".getBytes(StandardCharsets.UTF_8)
+      ));
+      assertEquals(Map.of("com.acme.scan.Service", Set.of("com.acme.Marker")), scan(jar));
+    }
+  }
+
+  @Nested
+  public class NoInitialization {
+    @Target(ElementType.TYPE)
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Marker {
+      String value() default "";
+      int[] values() default {};
+    }
+
+    static class NotAnnotated {
+      static {
+        if (true) {
+          throw new AssertionError("NotAnnotated initialized");
+        }
+      }
+    }
+
+    @Marker(value = "hello", values = { 1, 2 })
+    static class Annotated {
+      static {
+        if (true) {
+          throw new AssertionError("Annotated initialized");
+        }
+      }
+    }
+
+    @Test @Tag("NoInitialization")
+    public void scanDoesNotInitializeClasses() {
+      var types = new ArrayList<Class<?>>();
+      var scanner  = new AnnotationScanner();
+      scanner.addAction(Marker.class, types::add);
+      scanner.scanClassPathPackageForAnnotations(NoInitialization.class);
+      assertEquals(List.of(Annotated.class.getName()), types.stream().map(Class::getName).toList());
+    }
+
+    @Test @Tag("NoInitialization")
+    public void annotationDescriptors() throws IOException {
+      var resource = Annotated.class.getName().substring(Annotated.class.getPackageName().length() + 1) + ".class";
+      try(var input = Objects.requireNonNull(Annotated.class.getResourceAsStream(resource))) {
+        assertEquals(Set.of(Marker.class.descriptorString()), ClassFileAnnotations.annotationDescriptors(input));
+      }
+    }
+  }
 }
\ No newline at end of file
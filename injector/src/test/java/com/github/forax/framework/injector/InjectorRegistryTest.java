@@ -6,17 +6,28 @@ import org.junit.jupiter.api.Test;
 
 import java.beans.PropertyDescriptor;
 import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 import static java.lang.annotation.ElementType.CONSTRUCTOR;
 import static java.lang.annotation.ElementType.METHOD;
 import static java.util.stream.Collectors.toSet;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -545,4 +556,757 @@ public class InjectorRegistryTest {
       assertThrows(NullPointerException.class, () -> registry.registerProviderClass(null));
     }
   }
+
+  @Nested
+  public class SingletonScope {
+    @Singleton
+    public static class Counter {
+      static final AtomicInteger INSTANCES = new AtomicInteger();
+
+      public Counter() {
+        INSTANCES.incrementAndGet();
+      }
+    }
+
+    @Test @Tag("SingletonScope")
+    public void singletonIsCreatedOnceAtFirstLookup() {
+      Counter.INSTANCES.set(0);
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Counter.class);
+      assertEquals(0, Counter.INSTANCES.get());
+      var counter1 = registry.lookupInstance(Counter.class);
+      var counter2 = registry.lookupInstance(Counter.class);
+      assertAll(
+          () -> assertSame(counter1, counter2),
+          () -> assertEquals(1, Counter.INSTANCES.get())
+      );
+    }
+
+    @Test @Tag("SingletonScope")
+    public void singletonIsCreatedOnceByConcurrentLookups() throws InterruptedException {
+      Counter.INSTANCES.set(0);
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Counter.class);
+      var instances = ConcurrentHashMap.newKeySet();
+      var threads = IntStream.range(0, 16)
+          .mapToObj(__ -> Thread.ofPlatform().start(() -> instances.add(registry.lookupInstance(Counter.class))))
+          .toList();
+      for(var thread : threads) {
+        thread.join();
+      }
+      assertAll(
+          () -> assertEquals(1, instances.size()),
+          () -> assertEquals(1, Counter.INSTANCES.get())
+      );
+    }
+
+    public static class Dependency {}
+
+    @Singleton
+    public static class Service {
+      private final Dependency dependency;
+
+      @Inject
+      public Service(Dependency dependency) {
+        this.dependency = dependency;
+      }
+    }
+
+    @Test @Tag("SingletonScope")
+    public void singletonDependencyRegisteredAfterwards() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Service.class);
+      registry.registerProviderClass(Dependency.class);
+      var service = registry.lookupInstance(Service.class);
+      assertAll(
+          () -> assertSame(service, registry.lookupInstance(Service.class)),
+          () -> assertNotNull(service.dependency),
+          () -> assertNotSame(service.dependency, registry.lookupInstance(Dependency.class))
+      );
+    }
+
+    @Test @Tag("SingletonScope")
+    public void singletonOfAnInterface() {
+      interface Shape {}
+      @Singleton
+      record Square() implements Shape {
+        public Square {}
+      }
+
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Shape.class, Square.class);
+      assertSame(registry.lookupInstance(Shape.class), registry.lookupInstance(Shape.class));
+    }
+  }
+
+  @Nested
+  public class Build {
+    public static class A {
+      @Inject
+      public A(B b) {}
+    }
+    public static class B {
+      @Inject
+      public B(C c) {}
+    }
+    public static class C {
+      @Inject
+      public void setA(A a) {}
+    }
+
+    @Test @Tag("Build")
+    public void validateDetectsACycle() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(A.class);
+      registry.registerProviderClass(B.class);
+      registry.registerProviderClass(C.class);
+      var exception = assertThrows(IllegalStateException.class, registry::validate);
+      var message = exception.getMessage();
+      assertTrue(
+          message.contains(A.class.getName() + " -> " + B.class.getName() + " -> " + C.class.getName() + " -> " + A.class.getName()) ||
+          message.contains(B.class.getName() + " -> " + C.class.getName() + " -> " + A.class.getName() + " -> " + B.class.getName()) ||
+          message.contains(C.class.getName() + " -> " + A.class.getName() + " -> " + B.class.getName() + " -> " + C.class.getName()),
+          message);
+    }
+
+    @Test @Tag("Build")
+    public void validateDetectsAMissingDependency() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(A.class);
+      var exception = assertThrows(IllegalStateException.class, registry::validate);
+      assertTrue(exception.getMessage().contains(B.class.getName()));
+    }
+
+    @Test @Tag("Build")
+    public void validate() {
+      record Foo(String s) {
+        @Inject
+        public Foo {}
+      }
+
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Foo.class);
+      registry.registerInstance(String.class, "hello");
+      registry.validate();
+      assertEquals(new Foo("hello"), registry.lookupInstance(Foo.class));
+    }
+
+    static final List<Class<?>> CREATIONS = new CopyOnWriteArrayList<>();
+
+    @Singleton
+    public static class Database {
+      public Database() {
+        CREATIONS.add(Database.class);
+      }
+    }
+    public static class Connection {
+      @Inject
+      public Connection(Database database) {}
+    }
+    @Singleton
+    public static class UserService {
+      @Inject
+      public UserService(Connection connection) {
+        CREATIONS.add(UserService.class);
+      }
+    }
+    @Singleton
+    public static class OrderService {
+      @Inject
+      public void setDatabase(Database database) {
+        CREATIONS.add(OrderService.class);
+      }
+    }
+
+    @Test @Tag("Build")
+    public void buildCreatesTheSingletonsInTopologicalOrder() {
+      CREATIONS.clear();
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(UserService.class);
+      registry.registerProviderClass(OrderService.class);
+      registry.registerProviderClass(Connection.class);
+      registry.registerProviderClass(Database.class);
+      assertEquals(List.of(), CREATIONS);
+      registry.build();
+      assertAll(
+          () -> assertEquals(3, CREATIONS.size()),
+          () -> assertEquals(Database.class, CREATIONS.getFirst()),
+          () -> assertEquals(Set.of(Database.class, UserService.class, OrderService.class), Set.copyOf(CREATIONS))
+      );
+      registry.lookupInstance(UserService.class);
+      assertEquals(3, CREATIONS.size());
+    }
+
+    @Singleton
+    public static class Failing {
+      public Failing() {
+        throw new UnsupportedOperationException("oops");
+      }
+    }
+
+    @Test @Tag("Build")
+    public void buildPropagatesTheExceptionOfASingleton() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Failing.class);
+      assertThrows(UnsupportedOperationException.class, registry::build);
+    }
+
+    @Test @Tag("Build")
+    public void registrationAfterBuildIsForbidden() {
+      var registry = new InjectorRegistry();
+      registry.registerInstance(String.class, "hello");
+      registry.build();
+      assertAll(
+          () -> assertThrows(IllegalStateException.class, () -> registry.registerInstance(Integer.class, 42)),
+          () -> assertThrows(IllegalStateException.class, () -> registry.registerProvider(Integer.class, () -> 42)),
+          () -> assertThrows(IllegalStateException.class, () -> registry.registerProviderClass(Database.class)),
+          () -> assertEquals("hello", registry.lookupInstance(String.class))
+      );
+    }
+
+    @Test @Tag("Build")
+    public void concurrentLookupsAfterBuild() throws InterruptedException {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(UserService.class);
+      registry.registerProviderClass(Connection.class);
+      registry.registerProviderClass(Database.class);
+      registry.build();
+      var services = ConcurrentHashMap.newKeySet();
+      var connections = ConcurrentHashMap.newKeySet();
+      var threads = IntStream.range(0, 8)
+          .mapToObj(__ -> Thread.ofPlatform().start(() -> {
+            for(var i = 0; i < 1_000; i++) {
+              services.add(registry.lookupInstance(UserService.class));
+              connections.add(registry.lookupInstance(Connection.class));
+            }
+          }))
+          .toList();
+      for(var thread : threads) {
+        thread.join();
+      }
+      assertAll(
+          () -> assertEquals(1, services.size()),
+          () -> assertEquals(8_000, connections.size())
+      );
+    }
+
+    @Test @Tag("Build")
+    public void buildDetectsACycle() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(A.class);
+      registry.registerProviderClass(B.class);
+      registry.registerProviderClass(C.class);
+      assertThrows(IllegalStateException.class, registry::build);
+    }
+  }
+
+  @Nested
+  public class CompiledFactory {
+    public static class Bean {
+      private final List<String> calls = new ArrayList<>();
+
+      @Inject
+      public Bean(String s, Integer i) {
+        calls.add("constructor " + s + " " + i);
+      }
+
+      @Inject
+      public void setName(String name) {
+        calls.add("setName " + name);
+      }
+
+      @Inject
+      public void setValue(Integer value) {
+        calls.add("setValue " + value);
+      }
+    }
+
+    @Test @Tag("CompiledFactory")
+    public void compileFactory() throws Throwable {
+      var constructor = Bean.class.getConstructor(String.class, Integer.class);
+      var setters = InjectorRegistry.findInjectableProperties(Bean.class).stream()
+          .map(PropertyDescriptor::getWriteMethod)
+          .toArray(Method[]::new);
+      var factory = InjectorRegistry.compileFactory(constructor, setters);
+      var bean = (Bean) (Object) factory.invokeExact(new Object[] { "foo", 42, "bar", 7 });
+      assertEquals(List.of("constructor foo 42", "setName bar", "setValue 7"), bean.calls);
+    }
+
+    @Test @Tag("CompiledFactory")
+    public void lookupInstanceUsesConstructorAndSetters() {
+      var registry = new InjectorRegistry();
+      registry.registerInstance(String.class, "hello");
+      registry.registerProvider(Integer.class, () -> 3);
+      registry.registerProviderClass(Bean.class);
+      var bean = registry.lookupInstance(Bean.class);
+      assertEquals(List.of("constructor hello 3", "setName hello", "setValue 3"), bean.calls);
+    }
+
+    public static class Failing {
+      public Failing() {
+        throw new IllegalArgumentException("oops");
+      }
+    }
+
+    @Test @Tag("CompiledFactory")
+    public void lookupInstancePropagatesTheExceptionOfTheConstructor() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Failing.class);
+      assertThrows(IllegalArgumentException.class, () -> registry.lookupInstance(Failing.class));
+    }
+  }
+
+  @Nested
+  public class DeferredInjection {
+    static final AtomicInteger HEAVY_INSTANCES = new AtomicInteger();
+
+    public interface Cache {
+      String get(String key);
+    }
+
+    public static class HeavyCache implements Cache {
+      public HeavyCache() {
+        HEAVY_INSTANCES.incrementAndGet();
+      }
+
+      @Override
+      public String get(String key) {
+        return key.toUpperCase();
+      }
+    }
+
+    public static class Client {
+      private final Supplier<HeavyCache> cache;
+
+      @Inject
+      public Client(Supplier<HeavyCache> cache) {
+        this.cache = cache;
+      }
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void supplierInjection() {
+      HEAVY_INSTANCES.set(0);
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Client.class);
+      registry.registerProviderClass(HeavyCache.class);
+      var client = registry.lookupInstance(Client.class);
+      assertEquals(0, HEAVY_INSTANCES.get());
+      var cache = client.cache.get();
+      assertAll(
+          () -> assertEquals("FOO", cache.get("foo")),
+          () -> assertEquals(1, HEAVY_INSTANCES.get())
+      );
+    }
+
+    public static class SetterClient {
+      private Supplier<? extends Cache> cache;
+
+      @Inject
+      public void setCache(Supplier<? extends Cache> cache) {
+        this.cache = cache;
+      }
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void supplierInjectionWithAWildcard() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(SetterClient.class);
+      registry.registerProviderClass(Cache.class, HeavyCache.class);
+      var client = registry.lookupInstance(SetterClient.class);
+      assertEquals("BAR", client.cache.get().get("bar"));
+    }
+
+    public static class Parent {
+      private final Supplier<Child> child;
+
+      @Inject
+      public Parent(Supplier<Child> child) {
+        this.child = child;
+      }
+    }
+
+    @Singleton
+    public static class Child {
+      private final Parent parent;
+
+      @Inject
+      public Child(Parent parent) {
+        this.parent = parent;
+      }
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void supplierInjectionBreaksACycle() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Parent.class);
+      registry.registerProviderClass(Child.class);
+      registry.build();
+      var parent = registry.lookupInstance(Parent.class);
+      assertSame(registry.lookupInstance(Child.class), parent.child.get());
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void validateDetectsAMissingSupplierDependency() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Client.class);
+      assertThrows(IllegalStateException.class, registry::validate);
+    }
+
+    @Lazy
+    public static class LazyCache implements Cache {
+      public LazyCache() {
+        HEAVY_INSTANCES.incrementAndGet();
+      }
+
+      @Override
+      public String get(String key) {
+        return key.toLowerCase();
+      }
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void lazyBinding() {
+      HEAVY_INSTANCES.set(0);
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Cache.class, LazyCache.class);
+      var cache = registry.lookupInstance(Cache.class);
+      assertEquals(0, HEAVY_INSTANCES.get());
+      assertAll(
+          () -> assertEquals("foo", cache.get("FOO")),
+          () -> assertEquals("bar", cache.get("BAR")),
+          () -> assertEquals(1, HEAVY_INSTANCES.get())
+      );
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void lazyBindingObjectMethodsDoNotCreateTheInstance() {
+      HEAVY_INSTANCES.set(0);
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Cache.class, LazyCache.class);
+      var cache = registry.lookupInstance(Cache.class);
+      var other = registry.lookupInstance(Cache.class);
+      assertAll(
+          () -> assertEquals(cache, cache),
+          () -> assertNotEquals(cache, other),
+          () -> assertEquals(System.identityHashCode(cache), cache.hashCode()),
+          () -> assertTrue(cache.toString().contains(Cache.class.getName())),
+          () -> assertEquals(0, HEAVY_INSTANCES.get())
+      );
+    }
+
+    @Singleton @Lazy
+    public static class LazySingletonCache implements Cache {
+      public LazySingletonCache() {
+        HEAVY_INSTANCES.incrementAndGet();
+      }
+
+      @Override
+      public String get(String key) {
+        return key;
+      }
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void lazySingletonIsNotCreatedByBuild() {
+      HEAVY_INSTANCES.set(0);
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Cache.class, LazySingletonCache.class);
+      registry.build();
+      var cache = registry.lookupInstance(Cache.class);
+      assertAll(
+          () -> assertSame(cache, registry.lookupInstance(Cache.class)),
+          () -> assertEquals(0, HEAVY_INSTANCES.get()),
+          () -> assertEquals("baz", cache.get("baz")),
+          () -> assertEquals(1, HEAVY_INSTANCES.get())
+      );
+    }
+
+    @Test @Tag("DeferredInjection")
+    public void lazyBindingOfAClass() {
+      var registry = new InjectorRegistry();
+      assertThrows(IllegalStateException.class, () -> registry.registerProviderClass(LazyCache.class));
+    }
+  }
+
+  @Nested
+  public class RequestScope {
+    @RequestScoped
+    public static class RequestContext {}
+
+    @ThreadScoped
+    public static class Buffer {}
+
+    public static class Handler {
+      private final RequestContext context;
+      private final Buffer buffer;
+
+      @Inject
+      public Handler(RequestContext context, Buffer buffer) {
+        this.context = context;
+        this.buffer = buffer;
+      }
+    }
+
+    private InjectorRegistry registry() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(RequestContext.class);
+      registry.registerProviderClass(Buffer.class);
+      registry.registerProviderClass(Handler.class);
+      registry.build();
+      return registry;
+    }
+
+    @Test @Tag("RequestScope")
+    public void instancesAreSharedInsideARequest() {
+      var registry = registry();
+      var contexts = new ArrayList<RequestContext>();
+      for(var i = 0; i < 2; i++) {
+        registry.runInRequest(() -> {
+          var handler1 = registry.lookupInstance(Handler.class);
+          var handler2 = registry.lookupInstance(Handler.class);
+          assertAll(
+              () -> assertNotSame(handler1, handler2),
+              () -> assertSame(handler1.context, handler2.context),
+              () -> assertSame(handler1.buffer, handler2.buffer),
+              () -> assertSame(handler1.context, registry.lookupInstance(RequestContext.class))
+          );
+          contexts.add(handler1.context);
+        });
+      }
+      assertNotSame(contexts.get(0), contexts.get(1));
+    }
+
+    @Test @Tag("RequestScope")
+    public void requestIsSharedWithSubtasks() {
+      var registry = registry();
+      registry.runInRequest(() -> {
+        var context = registry.lookupInstance(RequestContext.class);
+        var buffer = registry.lookupInstance(Buffer.class);
+        try(var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+          var subtask1 = scope.fork(() -> registry.lookupInstance(Handler.class));
+          var subtask2 = scope.fork(() -> registry.lookupInstance(Handler.class));
+          scope.join().throwIfFailed();
+          var handler1 = subtask1.get();
+          var handler2 = subtask2.get();
+          assertAll(
+              () -> assertSame(context, handler1.context),
+              () -> assertSame(context, handler2.context),
+              () -> assertNotSame(buffer, handler1.buffer),
+              () -> assertNotSame(handler1.buffer, handler2.buffer)
+          );
+        } catch (InterruptedException | ExecutionException e) {
+          throw new AssertionError(e);
+        }
+      });
+    }
+
+    @Test @Tag("RequestScope")
+    public void lookupOutsideARequest() {
+      var registry = registry();
+      assertAll(
+          () -> assertThrows(IllegalStateException.class, () -> registry.lookupInstance(RequestContext.class)),
+          () -> assertThrows(IllegalStateException.class, () -> registry.lookupInstance(Buffer.class)),
+          () -> assertThrows(NullPointerException.class, () -> registry.runInRequest(null))
+      );
+    }
+
+    @Singleton
+    public static class Widening {
+      @Inject
+      public Widening(Handler handler) {}
+    }
+
+    @Test @Tag("RequestScope")
+    public void singletonCanNotDependOnARequestScopedInstance() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Widening.class);
+      registry.registerProviderClass(Handler.class);
+      registry.registerProviderClass(Buffer.class);
+      registry.registerProviderClass(RequestContext.class);
+      var e = assertThrows(IllegalStateException.class, registry::validate);
+      assertTrue(e.getMessage().contains(
+          Widening.class.getName() + " -> " + Handler.class.getName() + " -> " + RequestContext.class.getName()), e.getMessage());
+      assertThrows(IllegalStateException.class, registry::build);
+    }
+
+    @Singleton
+    public static class Deferred {
+      private final Supplier<Buffer> buffer;
+
+      @Inject
+      public Deferred(Supplier<Buffer> buffer) {
+        this.buffer = buffer;
+      }
+    }
+
+    @Test @Tag("RequestScope")
+    public void singletonCanDependOnASupplierOfARequestScopedInstance() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Deferred.class);
+      registry.registerProviderClass(Buffer.class);
+      registry.build();
+      var deferred = registry.lookupInstance(Deferred.class);
+      registry.runInRequest(() -> assertSame(registry.lookupInstance(Buffer.class), deferred.buffer.get()));
+    }
+
+    public interface Service {
+      void run();
+    }
+
+    @Singleton @Lazy
+    public static class LazyWidening implements Service {
+      @Inject
+      public LazyWidening(RequestContext context) {}
+
+      @Override
+      public void run() {}
+    }
+
+    @Test @Tag("RequestScope")
+    public void lazySingletonCanNotDependOnARequestScopedInstance() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Service.class, LazyWidening.class);
+      registry.registerProviderClass(RequestContext.class);
+      var e = assertThrows(IllegalStateException.class, registry::validate);
+      assertTrue(e.getMessage().contains(Service.class.getName() + " -> " + RequestContext.class.getName()), e.getMessage());
+    }
+
+    @Lazy
+    public static class LazyService implements Service {
+      @Inject
+      public LazyService(Buffer buffer) {}
+
+      @Override
+      public void run() {}
+    }
+
+    @Singleton
+    public static class LazyClient {
+      @Inject
+      public LazyClient(Service service) {}
+    }
+
+    @Test @Tag("RequestScope")
+    public void singletonCanNotDependOnALazyThreadScopedInstance() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(LazyClient.class);
+      registry.registerProviderClass(Service.class, LazyService.class);
+      registry.registerProviderClass(Buffer.class);
+      var e = assertThrows(IllegalStateException.class, registry::validate);
+      assertTrue(e.getMessage().contains(
+          LazyClient.class.getName() + " -> " + Service.class.getName() + " -> " + Buffer.class.getName()), e.getMessage());
+    }
+
+    @Test @Tag("RequestScope")
+    public void threadScopedInstanceNeedsARequest() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Buffer.class);
+      registry.build();
+      var e = assertThrows(IllegalStateException.class, () -> registry.lookupInstance(Buffer.class));
+      assertTrue(e.getMessage().contains("runInRequest"), e.getMessage());
+      registry.runInRequest(() -> assertSame(registry.lookupInstance(Buffer.class), registry.lookupInstance(Buffer.class)));
+    }
+
+    @Singleton @RequestScoped
+    public static class TwoScopes {}
+
+    @Test @Tag("RequestScope")
+    public void onlyOneScope() {
+      var registry = new InjectorRegistry();
+      assertThrows(IllegalStateException.class, () -> registry.registerProviderClass(TwoScopes.class));
+    }
+  }
+
+  @Nested
+  public class GeneratedFactory {
+    public static class Point {
+      private final int x;
+      private String name;
+
+      @Inject
+      public Point(Integer x) {
+        this.x = x;
+      }
+
+      @Inject
+      public void setName(String name) {
+        this.name = name;
+      }
+    }
+
+    @Test @Tag("GeneratedFactory")
+    public void generatedFactoryOfAnInjectClass() {
+      var factory = InjectorRegistry.findGeneratedFactory(Point.class);
+      assertNotNull(factory);
+      assertEquals(List.of(
+          new InjectorFactory.Dependency(Integer.class, false),
+          new InjectorFactory.Dependency(String.class, false)), factory.dependencies());
+      var point = (Point) factory.create(new Object[] { 3, "origin" });
+      assertAll(
+          () -> assertEquals(3, point.x),
+          () -> assertEquals("origin", point.name)
+      );
+    }
+
+    @Test @Tag("GeneratedFactory")
+    public void lookupWithAGeneratedFactory() {
+      var registry = new InjectorRegistry();
+      registry.registerInstance(Integer.class, 7);
+      registry.registerInstance(String.class, "seven");
+      registry.registerProviderClass(Point.class);
+      var point = registry.lookupInstance(Point.class);
+      assertAll(
+          () -> assertEquals(7, point.x),
+          () -> assertEquals("seven", point.name)
+      );
+    }
+
+    @Test @Tag("GeneratedFactory")
+    public void generatedFactoryOfADeferredDependency() {
+      var factory = InjectorRegistry.findGeneratedFactory(DeferredInjection.SetterClient.class);
+      assertNotNull(factory);
+      assertEquals(List.of(new InjectorFactory.Dependency(DeferredInjection.Cache.class, true)), factory.dependencies());
+    }
+
+    @Test @Tag("GeneratedFactory")
+    public void noGeneratedFactory() {
+      class Local {
+        @Inject
+        public Local() {}
+      }
+      assertAll(
+          () -> assertNull(InjectorRegistry.findGeneratedFactory(Q6.B.class)),  // multiple @Inject constructors
+          () -> assertNull(InjectorRegistry.findGeneratedFactory(Local.class)),
+          () -> assertNull(InjectorRegistry.findGeneratedFactory(Q7.Service.class))  // no @Inject
+      );
+    }
+
+    public static class Manual {}
+
+    // named like a generated factory of Manual
+    public static class Manual$$InjectorFactory implements InjectorFactory<Manual> {
+      private static final AtomicInteger COUNTER = new AtomicInteger();
+
+      @Override
+      public List<Dependency> dependencies() {
+        return List.of();
+      }
+
+      @Override
+      public Manual create(Object[] dependencies) {
+        COUNTER.incrementAndGet();
+        return new Manual();
+      }
+    }
+
+    @Test @Tag("GeneratedFactory")
+    public void registryPrefersTheFactory() {
+      var registry = new InjectorRegistry();
+      registry.registerProviderClass(Manual.class);
+      var before = Manual$$InjectorFactory.COUNTER.get();
+      assertNotNull(registry.lookupInstance(Manual.class));
+      assertEquals(before + 1, Manual$$InjectorFactory.COUNTER.get());
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.github.forax.framework.orm;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * An asynchronous view of a repository, each operation runs on a virtual thread and returns a
+ * {@link CompletableFuture}.
+ *
+ * If an operation is called inside a transaction on the same datasource, the operation runs
+ * in that transaction, after the operations previously called in that transaction because they share
+ * the same connection. For the same reason, the operations of the synchronous repositories called
+ * by the thread of the transaction wait for the pending asynchronous operations, and so does the commit.
+ * A failed operation marks the transaction as rollback-only.
+ *
+ * A failed operation completes its future with a {@link CompletionException},
+ * the cause is the {@link SQLException} if the database access fails.
+ * Otherwise, the operation runs in its own transaction, so independent operations run concurrently,
+ * each with its own connection, the datasource is typically a {@link ConnectionPool}.
+ *
+ * @param <T> the type of the entities
+ * @param <ID> the type of the primary key
+ * @param <REPO> the type of the repository
+ *
+ * @see ORM#createAsyncRepository(Class, DataSource)
+ */
+public final class AsyncRepository<T, ID, REPO extends Repository<T, ID>> {
+  private static final Executor VIRTUAL_THREAD_EXECUTOR = task -> Thread.ofVirtual().name("orm-async").start(task);
+
+  private final REPO repository;
+  private final DataSource dataSource;
+
+  AsyncRepository(REPO repository, DataSource dataSource) {
+    this.repository = Objects.requireNonNull(repository);
+    this.dataSource = Objects.requireNonNull(dataSource);
+  }
+
+  public CompletableFuture<List<T>> findAll() {
+    return call(Repository::findAll);
+  }
+
+  public CompletableFuture<Optional<T>> findById(ID id) {
+    return call(repository -> repository.findById(id));
+  }
+
+  public CompletableFuture<T> save(T entity) {
+    return call(repository -> repository.save(entity));
+  }
+
+  /**
+   * Calls an operation of the repository asynchronously, used to call the methods specific to a repository.
+   *
+   * @param operation the operation to call
+   * @param <R> the type of the result of the operation
+   * @return a future of the result of the operation
+   */
+  public <R> CompletableFuture<R> call(Function<? super REPO, ? extends R> operation) {
+    Objects.requireNonNull(operation);
+    var transaction = ORM.currentTransactionOrNull();
+    if (transaction != null && transaction.dataSource() == dataSource) {
+      return transaction.chainAsync(() -> {
+        try {
+          return ORM.callInTransaction(transaction, () -> operation.apply(repository));
+        } catch (SQLException e) {
+          transaction.setRollbackOnly();
+          throw new CompletionException(e);
+        } catch (RuntimeException | Error e) {
+          transaction.setRollbackOnly();
+          throw e;
+        }
+      }, VIRTUAL_THREAD_EXECUTOR);
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      var box = new Object() { R result; };
+      try {
+        ORM.transaction(dataSource, () -> box.result = operation.apply(repository));
+      } catch (SQLException e) {
+        throw new CompletionException(e);
+      }
+      return box.result;
+    }, VIRTUAL_THREAD_EXECUTOR);
+  }
+}
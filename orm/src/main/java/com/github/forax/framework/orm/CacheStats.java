@@ -0,0 +1,15 @@
+package com.github.forax.framework.orm;
+
+/**
+ * Statistics of the second-level cache of an entity.
+ *
+ * @param hitCount the number of lookups that found an entity in the cache
+ * @param missCount the number of lookups that did not find an entity in the cache
+ * @param evictionCount the number of entities evicted because the cache was full or the entity expired
+ */
+public record CacheStats(long hitCount, long missCount, long evictionCount) {
+  public double hitRate() {
+    var requestCount = hitCount + missCount;
+    return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+  }
+}
@@ -0,0 +1,32 @@
+package com.github.forax.framework.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Enables a second-level cache for the entities of the annotated type, the cache is used by
+ * {@link Repository#findById(Object)}. The cached entities are shared between transactions,
+ * so a cacheable entity must be a record, {@link ORM#createRepository(Class)} rejects the other classes.
+ */
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface Cacheable {
+  enum Eviction {
+    /** evicts the least recently used entity */
+    LRU,
+    /** admits a new entity only if it is used more frequently than the entity it replaces */
+    W_TINY_LFU
+  }
+
+  Eviction eviction() default Eviction.LRU;
+
+  int maxSize() default 1_000;
+
+  /**
+   * time to live of an entity in milliseconds, 0 means no expiration
+   */
+  long timeToLive() default 0;
+}
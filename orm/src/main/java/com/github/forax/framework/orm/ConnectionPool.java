@@ -0,0 +1,322 @@
+package com.github.forax.framework.orm;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of connections on top of another {@link DataSource}.
+ *
+ * Borrowers wait in FIFO order when all the connections are in use,
+ * an idle connection is validated before being handed out and is closed
+ * if it stayed idle longer than the idle timeout.
+ * Calling {@link Connection#close()} on a borrowed connection gives it back to the pool.
+ */
+public final class ConnectionPool implements DataSource, AutoCloseable {
+  private static final int VALIDATION_TIMEOUT_IN_SECONDS = 1;
+
+  /**
+   * A snapshot of the metrics of the pool.
+   *
+   * @param activeCount the number of borrowed connections
+   * @param idleCount the number of connections waiting in the pool
+   * @param borrowCount the number of connections borrowed since the creation of the pool
+   * @param totalWaitTime the time spent by all borrowers waiting for a connection
+   * @param maxWaitTime the longest time a borrower waited for a connection
+   */
+  public record Metrics(int activeCount, int idleCount, long borrowCount, Duration totalWaitTime, Duration maxWaitTime) {
+    public Metrics {
+      Objects.requireNonNull(totalWaitTime);
+      Objects.requireNonNull(maxWaitTime);
+    }
+
+    public Duration averageWaitTime() {
+      return borrowCount == 0 ? Duration.ZERO : totalWaitTime.dividedBy(borrowCount);
+    }
+  }
+
+  private record IdleConnection(Connection connection, long idleSince) {}
+
+  private final DataSource dataSource;
+  private final long idleTimeout;
+  private final long borrowTimeout;
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<IdleConnection> idleConnections = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger activeCount = new AtomicInteger();
+  private final LongAdder borrowCount = new LongAdder();
+  private final LongAdder totalWaitTime = new LongAdder();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private volatile boolean closed;
+
+  public ConnectionPool(DataSource dataSource, int maxSize) {
+    this(dataSource, maxSize, Duration.ofMinutes(10), Duration.ofSeconds(30));
+  }
+
+  public ConnectionPool(DataSource dataSource, int maxSize, Duration idleTimeout, Duration borrowTimeout) {
+    Objects.requireNonNull(dataSource, "dataSource is null");
+    Objects.requireNonNull(idleTimeout, "idleTimeout is null");
+    Objects.requireNonNull(borrowTimeout, "borrowTimeout is null");
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (idleTimeout.isNegative() || borrowTimeout.isNegative()) {
+      throw new IllegalArgumentException("negative timeout");
+    }
+    this.dataSource = dataSource;
+    this.idleTimeout = idleTimeout.toNanos();
+    this.borrowTimeout = borrowTimeout.toNanos();
+    this.permits = new Semaphore(maxSize, /*fair=*/ true);
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    if (closed) {
+      throw new SQLException("pool closed");
+    }
+    var start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire(borrowTimeout, TimeUnit.NANOSECONDS)) {
+        throw new SQLTransientConnectionException("no connection available after " + Duration.ofNanos(borrowTimeout));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException(e);
+    }
+    var waitTime = System.nanoTime() - start;
+    totalWaitTime.add(waitTime);
+    maxWaitTime.accumulateAndGet(waitTime, Math::max);
+    borrowCount.increment();
+
+    Connection connection;
+    try {
+      connection = borrow();
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+    activeCount.incrementAndGet();
+    return pooledConnection(connection);
+  }
+
+  private Connection borrow() throws SQLException {
+    IdleConnection idleConnection;
+    while ((idleConnection = idleConnections.pollFirst()) != null) {
+      var connection = idleConnection.connection;
+      if (isExpired(idleConnection, System.nanoTime()) || !connection.isValid(VALIDATION_TIMEOUT_IN_SECONDS)) {
+        closeQuietly(connection);
+        continue;
+      }
+      return connection;
+    }
+    return dataSource.getConnection();
+  }
+
+  private boolean isExpired(IdleConnection idleConnection, long now) {
+    return now - idleConnection.idleSince >= idleTimeout;
+  }
+
+  private Connection pooledConnection(Connection connection) {
+    return new PooledConnection(connection).proxy;
+  }
+
+  /**
+   * The proxy handed out to a borrower, the underlying connection is never exposed,
+   * so it can not be used once it is back in the pool.
+   * The statements and the result sets are also proxied, so {@code getConnection()}
+   * and {@code getStatement()} return the proxies.
+   */
+  private final class PooledConnection implements InvocationHandler {
+    private final Connection connection;
+    private final Connection proxy;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private PooledConnection(Connection connection) {
+      this.connection = connection;
+      this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[] { Connection.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+      return switch (method.getName()) {
+        case "close" -> {
+          if (released.compareAndSet(false, true)) {
+            release(connection);
+          }
+          yield null;
+        }
+        case "isClosed" -> released.get() || connection.isClosed();
+        case "equals", "hashCode", "toString", "unwrap", "isWrapperFor" -> invokeIdentityMethod(proxy, method, args, connection);
+        default -> {
+          if (released.get()) {
+            throw new SQLException("connection closed");
+          }
+          yield wrap(Utils.invokeMethod(connection, method, args), method.getReturnType(), null);
+        }
+      };
+    }
+
+    private Object wrap(Object result, Class<?> type, Object statementProxy) {
+      if (!(result instanceof Statement || result instanceof DatabaseMetaData
+          || (statementProxy != null && result instanceof ResultSet))) {
+        return result;
+      }
+      return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) ->
+          switch (method.getName()) {
+            case "getConnection" -> this.proxy;
+            case "getStatement" -> statementProxy;
+            case "equals", "hashCode", "toString", "unwrap", "isWrapperFor" -> invokeIdentityMethod(proxy, method, args, result);
+            default -> wrap(Utils.invokeMethod(result, method, args), method.getReturnType(),
+                proxy instanceof Statement ? proxy : null);
+          });
+    }
+  }
+
+  /**
+   * Answers the methods of {@link Object} and {@link java.sql.Wrapper} on the identity of the proxy,
+   * so the underlying object is never returned.
+   */
+  private static Object invokeIdentityMethod(Object proxy, Method method, Object[] args, Object delegate) throws SQLException {
+    return switch (method.getName()) {
+      case "equals" -> proxy == args[0];
+      case "hashCode" -> System.identityHashCode(proxy);
+      case "toString" -> "pooled " + delegate;
+      case "unwrap" -> {
+        var type = (Class<?>) args[0];
+        if (!type.isInstance(proxy)) {
+          throw new SQLException("a pooled object is not a wrapper for " + type.getName());
+        }
+        yield proxy;
+      }
+      case "isWrapperFor" -> ((Class<?>) args[0]).isInstance(proxy);
+      default -> throw new AssertionError(method);
+    };
+  }
+
+  private void release(Connection connection) {
+    try {
+      if (closed || connection.isClosed()) {
+        closeQuietly(connection);
+        return;
+      }
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+      var idleConnection = new IdleConnection(connection, System.nanoTime());
+      idleConnections.addFirst(idleConnection);
+      // close() may have drained the idle connections between the test above and the add
+      if (closed && idleConnections.removeFirstOccurrence(idleConnection)) {
+        closeQuietly(connection);
+      }
+    } catch (SQLException e) {
+      closeQuietly(connection);
+    } finally {
+      activeCount.decrementAndGet();
+      permits.release();
+    }
+    evictIdleConnections();
+  }
+
+  /**
+   * Closes the connections that stayed in the pool longer than the idle timeout.
+   * This is done each time a connection is given back to the pool.
+   */
+  public void evictIdleConnections() {
+    var now = System.nanoTime();
+    IdleConnection idleConnection;
+    // the least recently used connections are at the end of the deque
+    while ((idleConnection = idleConnections.peekLast()) != null && isExpired(idleConnection, now)) {
+      if (idleConnections.removeLastOccurrence(idleConnection)) {
+        closeQuietly(idleConnection.connection);
+      }
+    }
+  }
+
+  public Metrics metrics() {
+    return new Metrics(activeCount.get(), idleConnections.size(), borrowCount.sum(),
+        Duration.ofNanos(totalWaitTime.sum()), Duration.ofNanos(maxWaitTime.get()));
+  }
+
+  /**
+   * Closes the idle connections, the borrowed connections are closed when given back to the pool.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    IdleConnection idleConnection;
+    while ((idleConnection = idleConnections.pollFirst()) != null) {
+      closeQuietly(idleConnection.connection);
+    }
+  }
+
+  private static void closeQuietly(Connection connection) {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      // the connection is discarded anyway
+    }
+  }
+
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    throw new SQLFeatureNotSupportedException("a pool does not support per user connections");
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return dataSource.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    dataSource.setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    dataSource.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return dataSource.getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return dataSource.getParentLogger();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> type) throws SQLException {
+    if (type.isInstance(this)) {
+      return type.cast(this);
+    }
+    return dataSource.unwrap(type);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> type) throws SQLException {
+    return type.isInstance(this) || dataSource.isWrapperFor(type);
+  }
+}
@@ -0,0 +1,392 @@
+package com.github.forax.framework.orm;
+
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A query derived from the name of a repository method, parsed once when the repository is created.
+ *
+ * <pre>
+ *   method     ::= ("find" ["All"] [("Top" | "First") [number]] "By" [predicate] "OrderBy" orders)
+ *                | ("find" ["All"] [("Top" | "First") [number]] | "count" | "exists" | "delete") "By" predicate ["OrderBy" orders]
+ *   predicate  ::= condition (("And" | "Or") condition)*
+ *   condition  ::= Property ["GreaterThan" | "GreaterThanEqual" | "LessThan" | "LessThanEqual" | "Between" | "In"]
+ *   orders     ::= (Property ("Asc" | "Desc"))+ | Property
+ * </pre>
+ *
+ * "And" has a higher precedence than "Or", like in SQL.
+ * The parameters of the method are used in the order of the conditions, "Between" takes two parameters
+ * and "In" takes a {@link Collection}.
+ * A find method that returns a {@link Slice} takes a {@link PageRequest} as last parameter,
+ * the entities are ordered by primary key so "Top" and "OrderBy" are not allowed.
+ * A find method can return a projection, a record or an interface, instead of the entity,
+ * in that case, only the columns of the properties of the projection are selected.
+ */
+final class DerivedQuery {
+  enum Kind { FIND, COUNT, EXISTS, DELETE }
+
+  private enum Operator {
+    EQUAL("", " = ?", 1),
+    GREATER_THAN_EQUAL("GreaterThanEqual", " >= ?", 1),
+    GREATER_THAN("GreaterThan", " > ?", 1),
+    LESS_THAN_EQUAL("LessThanEqual", " <= ?", 1),
+    LESS_THAN("LessThan", " < ?", 1),
+    BETWEEN("Between", " BETWEEN ? AND ?", 2),
+    IN("In", " IN (", 1);
+
+    private final String suffix;
+    private final String sql;
+    private final int parameterCount;
+
+    Operator(String suffix, String sql, int parameterCount) {
+      this.suffix = suffix;
+      this.sql = sql;
+      this.parameterCount = parameterCount;
+    }
+  }
+
+  private enum ResultShape { LIST, SLICE, OPTIONAL, ENTITY, LONG, INT, BOOLEAN, VOID }
+
+  private static final Pattern METHOD_PATTERN =
+      Pattern.compile("(find(?:All)?(?:(?:Top|First)(\\d*))?|count|exists|delete)By(.+)");
+  private static final Pattern CONNECTOR_PATTERN = Pattern.compile("(?<=\\p{javaLowerCase}|\\d)(And|Or)(?=\\p{javaUpperCase})");
+  private static final Pattern ORDER_PATTERN = Pattern.compile("(.+?)(Asc|Desc)");
+
+  private final Kind kind;
+  private final ResultShape resultShape;
+  private final String[] sqlParts;
+  private final boolean[] inParameters;
+  private final boolean hasCondition;
+  private final PropertyDescriptor idProperty;  // only for slices
+  private final Class<?> projectionType;  // null if the method returns entities
+
+  private DerivedQuery(Kind kind, ResultShape resultShape, String[] sqlParts, boolean[] inParameters,
+                       boolean hasCondition, PropertyDescriptor idProperty, Class<?> projectionType) {
+    this.kind = kind;
+    this.resultShape = resultShape;
+    this.sqlParts = sqlParts;
+    this.inParameters = inParameters;
+    this.hasCondition = hasCondition;
+    this.idProperty = idProperty;
+    this.projectionType = projectionType;
+  }
+
+  Kind kind() {
+    return kind;
+  }
+
+  Class<?> projectionType() {
+    return projectionType;
+  }
+
+  /**
+   * Returns true if the name of the method follows the grammar of the derived queries.
+   */
+  static boolean isDerivedQuery(Method method) {
+    return METHOD_PATTERN.matcher(method.getName()).matches();
+  }
+
+  /**
+   * Parses the name of a method and generates the corresponding SQL query.
+   *
+   * @throws IllegalStateException if the method is not a valid derived query
+   */
+  static DerivedQuery parse(Method method, Class<?> beanClass, BeanInfo beanInfo, String tableName) {
+    var matcher = METHOD_PATTERN.matcher(method.getName());
+    if (!matcher.matches()) {
+      throw new IllegalStateException("invalid derived query method " + method);
+    }
+    var subject = matcher.group(1);
+    var kind = subject.startsWith("find") ? Kind.FIND : Kind.valueOf(subject.toUpperCase(Locale.ROOT));
+    var projectionType = kind == Kind.FIND ? ORM.findProjectionType(method, beanClass) : null;
+    var resultShape = resultShape(method, kind, projectionType != null ? projectionType : beanClass);
+    var limit = matcher.group(2) == null ? -1 : matcher.group(2).isEmpty() ? 1 : Integer.parseInt(matcher.group(2));
+    if (limit == 0) {
+      throw new IllegalStateException("invalid limit 0 for method " + method);
+    }
+    if (limit == -1 && (kind == Kind.EXISTS || resultShape == ResultShape.OPTIONAL || resultShape == ResultShape.ENTITY)) {
+      limit = 1;
+    }
+
+    var criteria = matcher.group(3);
+    var orderBy = "";
+    var orderByIndex = criteria.lastIndexOf("OrderBy");
+    if (orderByIndex != -1) {
+      if (kind != Kind.FIND) {
+        throw new IllegalStateException("OrderBy is only allowed on find methods " + method);
+      }
+      orderBy = parseOrderBy(method, beanInfo, criteria.substring(orderByIndex + "OrderBy".length()));
+      criteria = criteria.substring(0, orderByIndex);
+    }
+    var slice = resultShape == ResultShape.SLICE;
+    PropertyDescriptor idProperty = null;
+    if (slice) {
+      if (projectionType != null) {
+        throw new IllegalStateException("a slice of projections is not supported " + method);
+      }
+      if (limit != -1 || !orderBy.isEmpty()) {
+        throw new IllegalStateException("Top and OrderBy can not be used with a slice " + method);
+      }
+      idProperty = ORM.findId(beanInfo);
+      if (idProperty == null) {
+        throw new IllegalStateException("no @Id property, slices are not supported " + method);
+      }
+    }
+
+    var sqlParts = new ArrayList<String>();
+    var inParameters = new ArrayList<Boolean>();
+    var builder = new StringBuilder(switch (kind) {
+      case FIND -> projectionType == null ? "SELECT * FROM " : "SELECT " + selectList(method, beanInfo, projectionType) + " FROM ";
+      case COUNT -> "SELECT COUNT(*) FROM ";
+      case EXISTS -> "SELECT 1 FROM ";
+      case DELETE -> "DELETE FROM ";
+    }).append(tableName);
+    var connectorMatcher = CONNECTOR_PATTERN.matcher(criteria);
+    var start = 0;
+    if (!criteria.isEmpty()) {
+      // the condition on the primary key of a slice is added to the whole predicate
+      builder.append(slice ? " WHERE (" : " WHERE ");
+    }
+    while (!criteria.isEmpty()) {
+      var found = connectorMatcher.find();
+      var condition = criteria.substring(start, found ? connectorMatcher.start() : criteria.length());
+      var operator = parseCondition(method, beanInfo, condition, builder);
+      for (var i = 0; i < operator.parameterCount; i++) {
+        inParameters.add(operator == Operator.IN);
+      }
+      if (operator == Operator.IN) {
+        sqlParts.add(builder.toString());
+        builder.setLength(0);
+        builder.append(")");
+      }
+      if (!found) {
+        break;
+      }
+      builder.append(connectorMatcher.group(1).equals("And") ? " AND " : " OR ");
+      start = connectorMatcher.end();
+    }
+    if (slice && !criteria.isEmpty()) {
+      builder.append(')');
+    }
+    builder.append(orderBy);
+    if (limit != -1) {
+      builder.append(" FETCH FIRST ").append(limit).append(" ROWS ONLY");
+    }
+    sqlParts.add(builder.toString());
+
+    var parameterTypes = method.getParameterTypes();
+    var parameterCount = inParameters.size() + (slice ? 1 : 0);
+    if (parameterTypes.length != parameterCount) {
+      throw new IllegalStateException("method " + method + " should have " + parameterCount + " parameters");
+    }
+    if (slice && parameterTypes[parameterCount - 1] != PageRequest.class) {
+      throw new IllegalStateException("the last parameter of method " + method + " should be a PageRequest");
+    }
+    var ins = new boolean[inParameters.size()];
+    for (var i = 0; i < ins.length; i++) {
+      ins[i] = inParameters.get(i);
+      if (ins[i] && !Collection.class.isAssignableFrom(parameterTypes[i])) {
+        throw new IllegalStateException("the parameter " + i + " of method " + method + " should be a collection");
+      }
+    }
+    return new DerivedQuery(kind, resultShape, sqlParts.toArray(String[]::new), ins, !criteria.isEmpty(), idProperty,
+        projectionType);
+  }
+
+  /**
+   * Returns the columns of the entity that have the same name as the properties of the projection,
+   * labeled with the column names of the projection.
+   */
+  private static String selectList(Method method, BeanInfo beanInfo, Class<?> projectionType) {
+    return Arrays.stream(Utils.beanInfo(projectionType).getPropertyDescriptors())
+        .filter(property -> property.getReadMethod() != null && !property.getName().equals("class"))
+        .map(property -> {
+          var entityProperty = Arrays.stream(beanInfo.getPropertyDescriptors())
+              .filter(p -> p.getName().equals(property.getName()))
+              .findFirst()
+              .orElseThrow(() -> new IllegalStateException("no property " + property.getName() + " in the entity of " + method));
+          return ORM.findColumnName(entityProperty) + " AS " + ORM.findColumnName(property);
+        })
+        .collect(Collectors.joining(", "));
+  }
+
+  private static ResultShape resultShape(Method method, Kind kind, Class<?> elementType) {
+    var returnType = method.getReturnType();
+    var shape = switch (kind) {
+      case FIND -> returnType == List.class ? ResultShape.LIST :
+          returnType == Slice.class ? ResultShape.SLICE :
+          returnType == Optional.class ? ResultShape.OPTIONAL :
+          returnType == elementType ? ResultShape.ENTITY : null;
+      case COUNT -> longOrInt(returnType);
+      case EXISTS -> returnType == boolean.class || returnType == Boolean.class ? ResultShape.BOOLEAN : null;
+      case DELETE -> returnType == void.class ? ResultShape.VOID : longOrInt(returnType);
+    };
+    if (shape == null) {
+      throw new IllegalStateException("invalid return type " + returnType.getName() + " for method " + method);
+    }
+    return shape;
+  }
+
+  private static ResultShape longOrInt(Class<?> type) {
+    return type == long.class || type == Long.class ? ResultShape.LONG :
+        type == int.class || type == Integer.class ? ResultShape.INT : null;
+  }
+
+  private static PropertyDescriptor findProperty(BeanInfo beanInfo, String capitalizedName) {
+    var name = Introspector.decapitalize(capitalizedName);
+    return Arrays.stream(beanInfo.getPropertyDescriptors())
+        .filter(property -> !property.getName().equals("class"))
+        .filter(property -> property.getName().equals(name))
+        .findFirst()
+        .orElse(null);
+  }
+
+  private static Operator parseCondition(Method method, BeanInfo beanInfo, String condition, StringBuilder builder) {
+    // the property name is tried first, so a property can end with the name of an operator
+    for (var operator : Operator.values()) {
+      if (!condition.endsWith(operator.suffix)) {
+        continue;
+      }
+      var property = findProperty(beanInfo, condition.substring(0, condition.length() - operator.suffix.length()));
+      if (property != null) {
+        builder.append(ORM.findColumnName(property)).append(operator.sql);
+        return operator;
+      }
+    }
+    throw new IllegalStateException("invalid condition " + condition + " in method " + method);
+  }
+
+  private static String parseOrderBy(Method method, BeanInfo beanInfo, String orders) {
+    var columns = new ArrayList<String>();
+    var matcher = ORDER_PATTERN.matcher(orders);
+    var end = 0;
+    while (matcher.find() && matcher.start() == end) {
+      var property = findProperty(beanInfo, matcher.group(1));
+      if (property == null) {
+        break;
+      }
+      columns.add(ORM.findColumnName(property) + (matcher.group(2).equals("Asc") ? " ASC" : " DESC"));
+      end = matcher.end();
+    }
+    if (end != orders.length()) {
+      // a single property without direction
+      var property = columns.isEmpty() ? findProperty(beanInfo, orders) : null;
+      if (property == null) {
+        throw new IllegalStateException("invalid order by " + orders + " in method " + method);
+      }
+      columns.add(ORM.findColumnName(property) + " ASC");
+    }
+    return " ORDER BY " + String.join(", ", columns);
+  }
+
+  /**
+   * Returns the SQL query, the placeholders of the "In" conditions are expanded
+   * to match the size of the collections.
+   * The sizes are rounded to a power of two, so only a few different queries are sent to the database.
+   */
+  String sql(Object[] args) {
+    var sql = expandedSql(args);
+    if (idProperty == null) {
+      return sql;
+    }
+    return ORM.sliceQuery(sql, hasCondition, ORM.findColumnName(idProperty), pageRequest(args));
+  }
+
+  private PageRequest pageRequest(Object[] args) {
+    return Objects.requireNonNull((PageRequest) args[args.length - 1], "pageRequest is null");
+  }
+
+  private String expandedSql(Object[] args) {
+    if (sqlParts.length == 1) {
+      return sqlParts[0];
+    }
+    var builder = new StringBuilder(sqlParts[0]);
+    var part = 1;
+    for (var i = 0; i < inParameters.length; i++) {
+      if (inParameters[i]) {
+        var size = ((Collection<?>) args[i]).size();
+        if (size == 0) {
+          // no value matches NULL
+          builder.append("NULL");
+        } else {
+          builder.append("?, ".repeat(paddedSize(size) - 1)).append('?');
+        }
+        builder.append(sqlParts[part++]);
+      }
+    }
+    return builder.toString();
+  }
+
+  static int paddedSize(int size) {
+    return size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+  }
+
+  /**
+   * Returns the values of the placeholders of the query,
+   * the collections are padded with their last value.
+   */
+  Object[] parameters(Object[] args) {
+    if (sqlParts.length == 1 && idProperty == null) {
+      return args;
+    }
+    var parameters = new ArrayList<>();
+    for (var i = 0; i < inParameters.length; i++) {
+      if (!inParameters[i]) {
+        parameters.add(args[i]);
+        continue;
+      }
+      var values = (Collection<?>) args[i];
+      Object last = null;
+      for (var value : values) {
+        parameters.add(value);
+        last = value;
+      }
+      if (!values.isEmpty()) {
+        for (var j = values.size(); j < paddedSize(values.size()); j++) {
+          parameters.add(last);
+        }
+      }
+    }
+    if (idProperty != null) {
+      return ORM.sliceParameters(parameters.toArray(), pageRequest(args));
+    }
+    return parameters.toArray();
+  }
+
+  /**
+   * Converts the entities found by a find query to the return type of the method.
+   */
+  Object result(List<?> entities, Object[] args) {
+    return switch (resultShape) {
+      case LIST -> entities;
+      case SLICE -> ORM.toSlice(entities, pageRequest(args), idProperty);
+      case OPTIONAL -> entities.stream().findFirst();
+      case ENTITY -> entities.isEmpty() ? null : entities.getFirst();
+      default -> throw new AssertionError();
+    };
+  }
+
+  /**
+   * Converts a count or the number of deleted rows to the return type of the method.
+   */
+  Object result(long count) {
+    return switch (resultShape) {
+      case LONG -> count;
+      case INT -> Math.toIntExact(count);
+      case BOOLEAN -> count != 0;
+      case VOID -> null;
+      default -> throw new AssertionError();
+    };
+  }
+}
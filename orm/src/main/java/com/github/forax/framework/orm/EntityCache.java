@@ -0,0 +1,320 @@
+package com.github.forax.framework.orm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A size bounded cache of entities indexed by their primary key.
+ *
+ * All operations are guarded by the lock of the cache.
+ * Each invalidation increments a generation counter, so a value read from the database
+ * before an invalidation is not inserted in the cache after it, see {@link #put(Object, Object, long)}.
+ */
+final class EntityCache {
+  private record Value(Object entity, long expiration) {}
+
+  private final Storage storage;
+  private final long timeToLive;
+  private long generation;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  EntityCache(Cacheable.Eviction eviction, int maxSize, long timeToLiveInMillis) {
+    Objects.requireNonNull(eviction);
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (timeToLiveInMillis < 0) {
+      throw new IllegalArgumentException("timeToLive < 0");
+    }
+    this.storage = switch (eviction) {
+      case LRU -> new LruStorage(maxSize);
+      case W_TINY_LFU -> new TinyLfuStorage(maxSize);
+    };
+    this.timeToLive = timeToLiveInMillis * 1_000_000;
+  }
+
+  static EntityCache of(Cacheable cacheable) {
+    return new EntityCache(cacheable.eviction(), cacheable.maxSize(), cacheable.timeToLive());
+  }
+
+  synchronized Object get(Object id) {
+    var value = storage.get(id);
+    if (value != null && timeToLive != 0 && System.nanoTime() - value.expiration >= 0) {
+      storage.remove(id);
+      evictionCount++;
+      value = null;
+    }
+    if (value == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return value.entity;
+  }
+
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Inserts an entity only if there was no invalidation since {@code expectedGeneration}.
+   */
+  synchronized void put(Object id, Object entity, long expectedGeneration) {
+    Objects.requireNonNull(id);
+    Objects.requireNonNull(entity);
+    if (generation != expectedGeneration) {
+      return;
+    }
+    var expiration = timeToLive == 0 ? 0 : System.nanoTime() + timeToLive;
+    evictionCount += storage.put(id, new Value(entity, expiration));
+  }
+
+  synchronized void remove(Object id) {
+    generation++;
+    storage.remove(id);
+  }
+
+  synchronized void clear() {
+    generation++;
+    storage.clear();
+  }
+
+  synchronized int size() {
+    return storage.size();
+  }
+
+  synchronized CacheStats stats() {
+    return new CacheStats(hitCount, missCount, evictionCount);
+  }
+
+  private static <K, V> LinkedHashMap<K, V> accessOrderMap() {
+    return new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/ true);
+  }
+
+  private static <K, V> Map.Entry<K, V> eldest(LinkedHashMap<K, V> map) {
+    return map.entrySet().iterator().next();
+  }
+
+  private interface Storage {
+    Value get(Object id);
+
+    /**
+     * @return the number of evicted entities
+     */
+    int put(Object id, Value value);
+    void remove(Object id);
+    void clear();
+    int size();
+  }
+
+  private static final class LruStorage implements Storage {
+    private final int maxSize;
+    private final LinkedHashMap<Object, Value> map = accessOrderMap();
+
+    private LruStorage(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    public Value get(Object id) {
+      return map.get(id);
+    }
+
+    @Override
+    public int put(Object id, Value value) {
+      map.put(id, value);
+      if (map.size() > maxSize) {
+        map.remove(eldest(map).getKey());
+        return 1;
+      }
+      return 0;
+    }
+
+    @Override
+    public void remove(Object id) {
+      map.remove(id);
+    }
+
+    @Override
+    public void clear() {
+      map.clear();
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+  }
+
+  /**
+   * W-TinyLFU: a small LRU window in front of a segmented LRU (probation and protected),
+   * an entity evicted from the window enters the main space only if it is estimated
+   * to be more frequently used than the probation victim.
+   * The frequencies are estimated with a count-min sketch that is aged periodically.
+   */
+  private static final class TinyLfuStorage implements Storage {
+    private final int windowMaxSize;
+    private final int protectedMaxSize;
+    private final int mainMaxSize;
+    private final LinkedHashMap<Object, Value> window = accessOrderMap();
+    private final LinkedHashMap<Object, Value> probation = accessOrderMap();
+    private final LinkedHashMap<Object, Value> protectedSegment = accessOrderMap();
+    private final FrequencySketch sketch;
+
+    private TinyLfuStorage(int maxSize) {
+      this.windowMaxSize = Math.max(1, maxSize / 100);
+      this.mainMaxSize = maxSize - windowMaxSize;  // may be empty if maxSize is 1
+      this.protectedMaxSize = Math.max(1, mainMaxSize * 4 / 5);
+      this.sketch = new FrequencySketch(maxSize);
+    }
+
+    @Override
+    public Value get(Object id) {
+      sketch.increment(id);
+      var value = window.get(id);
+      if (value != null) {
+        return value;
+      }
+      value = protectedSegment.get(id);
+      if (value != null) {
+        return value;
+      }
+      value = probation.remove(id);
+      if (value != null) {
+        promote(id, value);
+      }
+      return value;
+    }
+
+    private void promote(Object id, Value value) {
+      protectedSegment.put(id, value);
+      if (protectedSegment.size() > protectedMaxSize) {
+        var demoted = eldest(protectedSegment);
+        protectedSegment.remove(demoted.getKey());
+        probation.put(demoted.getKey(), demoted.getValue());
+      }
+    }
+
+    @Override
+    public int put(Object id, Value value) {
+      if (window.containsKey(id)) {
+        window.put(id, value);
+        return 0;
+      }
+      if (protectedSegment.containsKey(id)) {
+        protectedSegment.put(id, value);
+        return 0;
+      }
+      if (probation.containsKey(id)) {
+        probation.put(id, value);
+        return 0;
+      }
+      sketch.increment(id);
+      window.put(id, value);
+      if (window.size() <= windowMaxSize) {
+        return 0;
+      }
+      var candidate = eldest(window);
+      window.remove(candidate.getKey());
+      if (mainMaxSize == 0) {
+        return 1;
+      }
+      if (probation.size() + protectedSegment.size() < mainMaxSize) {
+        probation.put(candidate.getKey(), candidate.getValue());
+        return 0;
+      }
+      var victims = probation.isEmpty() ? protectedSegment : probation;
+      var victim = eldest(victims);
+      if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+        victims.remove(victim.getKey());
+        probation.put(candidate.getKey(), candidate.getValue());
+      }
+      return 1;
+    }
+
+    @Override
+    public void remove(Object id) {
+      if (window.remove(id) == null && probation.remove(id) == null) {
+        protectedSegment.remove(id);
+      }
+    }
+
+    @Override
+    public void clear() {
+      window.clear();
+      probation.clear();
+      protectedSegment.clear();
+    }
+
+    @Override
+    public int size() {
+      return window.size() + probation.size() + protectedSegment.size();
+    }
+  }
+
+  /**
+   * A count-min sketch of 4 rows of counters saturating at 15, all the counters are halved
+   * when the number of increments reaches 10 times the size of the cache.
+   */
+  private static final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97CB3127, 0x5A7A1C6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final byte[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    private FrequencySketch(int maxSize) {
+      // 4 counters per entity per row keep the over-estimation due to collisions low
+      var width = Integer.highestOneBit(Math.max(16, maxSize * 4) * 2 - 1);
+      this.counters = new byte[DEPTH * width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * maxSize;
+    }
+
+    private static int mix(int hash) {
+      var h = hash;
+      h ^= h >>> 16;
+      h *= 0x85EBCA6B;
+      h ^= h >>> 13;
+      h *= 0xC2B2AE35;
+      return h ^ (h >>> 16);
+    }
+
+    private int index(int hash, int row) {
+      return row * (mask + 1) + (mix(hash ^ SEEDS[row]) & mask);
+    }
+
+    void increment(Object key) {
+      var hash = key.hashCode();
+      var added = false;
+      for (var row = 0; row < DEPTH; row++) {
+        var index = index(hash, row);
+        if (counters[index] < MAX_COUNT) {
+          counters[index]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        for (var i = 0; i < counters.length; i++) {
+          counters[i] = (byte) (counters[i] >>> 1);
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(Object key) {
+      var hash = key.hashCode();
+      var frequency = MAX_COUNT;
+      for (var row = 0; row < DEPTH; row++) {
+        frequency = Math.min(frequency, counters[index(hash, row)]);
+      }
+      return frequency;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.github.forax.framework.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a property that references another entity, the column of the property
+ * contains the primary key of the referenced entity.
+ *
+ * If the type of the property is an interface, the referenced entity is loaded lazily,
+ * the first time a method other than the getter of the primary key is called,
+ * in that case {@link #targetEntity()} is the class of the entity that implements the interface.
+ * Otherwise, the referenced entities are loaded with the entities that reference them,
+ * with one query for all of them.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface ManyToOne {
+  Class<?> targetEntity() default void.class;
+}
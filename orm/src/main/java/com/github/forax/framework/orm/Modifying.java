@@ -0,0 +1,15 @@
+package com.github.forax.framework.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a method annotated with {@link Query} as an INSERT, UPDATE or DELETE statement,
+ * the method returns the number of rows modified as an int or a long, or returns void.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface Modifying { }
@@ -2,18 +2,27 @@ package com.github.forax.framework.orm;
 
 import javax.sql.DataSource;
 import java.beans.BeanInfo;
-import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.io.Serial;
+import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public final class ORM {
@@ -71,40 +80,275 @@ public final class ORM {
 
   // --- do not change the code above
 
-  private static final ThreadLocal<Connection> CONNECTION_THREAD_LOCAL = new ThreadLocal<>();
+  private static final ThreadLocal<Transaction> TRANSACTION_THREAD_LOCAL = new ThreadLocal<>();
+  private static final ScopedValue<Transaction> TRANSACTION_SCOPED_VALUE = ScopedValue.newInstance();
 
+  /**
+   * Runs a transaction, the connection is stored in a {@link ThreadLocal}.
+   * If a transaction on the same datasource is already running, the block joins it,
+   * a failure of the block then marks the enclosing transaction as rollback-only.
+   *
+   * @param datasource the datasource used to get the connection
+   * @param transaction the code of the transaction
+   * @throws SQLException if the transaction fails, in that case the transaction is rollbacked
+   */
   public static void transaction(DataSource datasource, TransactionBlock transaction) throws SQLException {
     Objects.requireNonNull(datasource);
     Objects.requireNonNull(transaction);
+    // a thread local binding would be hidden by an enclosing scoped binding
+    transaction(datasource, transaction, TRANSACTION_SCOPED_VALUE.isBound());
+  }
+
+  /**
+   * Runs a transaction with the connection bound to a {@link ScopedValue} instead of a {@link ThreadLocal}.
+   * Unlike {@link #transaction(DataSource, TransactionBlock)}, the connection is visible to the subtasks
+   * forked with a {@link java.util.concurrent.StructuredTaskScope} inside the transaction.
+   * The subtasks share the connection of the transaction so they should only do read-only work.
+   *
+   * @param datasource the datasource used to get the connection
+   * @param transaction the code of the transaction
+   * @throws SQLException if the transaction fails, in that case the transaction is rollbacked
+   */
+  public static void scopedTransaction(DataSource datasource, TransactionBlock transaction) throws SQLException {
+    Objects.requireNonNull(datasource);
+    Objects.requireNonNull(transaction);
+    transaction(datasource, transaction, true);
+  }
+
+  private static void transaction(DataSource datasource, TransactionBlock block, boolean scoped) throws SQLException {
+    var enclosing = currentTransactionOrNull();
+    if (enclosing != null && enclosing.dataSource() == datasource) {
+      try {
+        run(block);
+      } catch (SQLException | RuntimeException e) {
+        enclosing.setRollbackOnly();
+        throw e;
+      }
+      return;
+    }
     try (var connection = datasource.getConnection()) {
       connection.setAutoCommit(false);
-      CONNECTION_THREAD_LOCAL.set(connection);
-      try {
+      var transaction = new Transaction(datasource, connection);
+      if (scoped) {
         try {
-          transaction.run();
+          ScopedValue.where(TRANSACTION_SCOPED_VALUE, transaction).run(() -> {
+            try {
+              runAndCommit(transaction, block);
+            } catch (SQLException e) {
+              throw new UncheckedSQLException(e);
+            }
+          });
         } catch (UncheckedSQLException e) {
           throw e.getCause();
         }
-        connection.commit();
-      } catch (SQLException | RuntimeException e) {
-        try {
-          connection.rollback();
-        } catch (SQLException e2) {
-          e.addSuppressed(e2);
+        return;
+      }
+      var previous = TRANSACTION_THREAD_LOCAL.get();
+      TRANSACTION_THREAD_LOCAL.set(transaction);
+      try {
+        runAndCommit(transaction, block);
+      } finally {
+        if (previous == null) {
+          TRANSACTION_THREAD_LOCAL.remove();
+        } else {
+          TRANSACTION_THREAD_LOCAL.set(previous);
         }
-        throw e;
+      }
+    }
+  }
+
+  /**
+   * Runs a block inside the current transaction using a {@link java.sql.Savepoint},
+   * if the block fails, only the changes done by the block are rollbacked
+   * and the enclosing transaction can continue.
+   *
+   * @param block the code to run inside the savepoint
+   * @throws SQLException if the block fails
+   * @throws IllegalStateException if there is no current transaction
+   */
+  public static void nestedTransaction(TransactionBlock block) throws SQLException {
+    Objects.requireNonNull(block);
+    var transaction = currentTransaction();
+    var connection = transaction.connection();
+    // the pending modifications are not part of the nested transaction
+    flush(transaction);
+    var savepoint = connection.setSavepoint();
+    try {
+      run(block);
+    } catch (SQLException | RuntimeException e) {
+      try {
+        connection.rollback(savepoint);
+      } catch (SQLException e2) {
+        e.addSuppressed(e2);
+      }
+      // the loaded entities may reflect rollbacked changes
+      transaction.clearManaged();
+      throw e;
+    }
+    connection.releaseSavepoint(savepoint);
+  }
+
+  private static void run(TransactionBlock block) throws SQLException {
+    try {
+      block.run();
+    } catch (UncheckedSQLException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static void runAndCommit(Transaction transaction, TransactionBlock block) throws SQLException {
+    var connection = transaction.connection();
+    try {
+      try {
+        run(block);
       } finally {
-        CONNECTION_THREAD_LOCAL.remove();
+        // the asynchronous operations use the connection
+        transaction.awaitAsync();
+      }
+      if (transaction.isRollbackOnly()) {
+        throw new SQLException("transaction marked as rollback-only");
+      }
+      flush(transaction);
+      connection.commit();
+    } catch (SQLException | RuntimeException e) {
+      try {
+        connection.rollback();
+      } catch (SQLException e2) {
+        e.addSuppressed(e2);
       }
+      throw e;
+    } finally {
+      transaction.complete();
     }
   }
 
-  static Connection currentConnection() {
-    var connection = CONNECTION_THREAD_LOCAL.get();
-    if (connection == null) {
+  /**
+   * Calls an operation with a transaction bound to the current thread,
+   * used to run an operation of a transaction on another thread.
+   */
+  static <R> R callInTransaction(Transaction transaction, Supplier<? extends R> operation) throws SQLException {
+    var box = new Object() { R result; };
+    try {
+      ScopedValue.where(TRANSACTION_SCOPED_VALUE, transaction).run(() -> box.result = operation.get());
+    } catch (UncheckedSQLException e) {
+      throw e.getCause();
+    }
+    return box.result;
+  }
+
+  static Transaction currentTransactionOrNull() {
+    if (TRANSACTION_SCOPED_VALUE.isBound()) {
+      return TRANSACTION_SCOPED_VALUE.get();
+    }
+    return TRANSACTION_THREAD_LOCAL.get();
+  }
+
+  static Transaction currentTransaction() {
+    var transaction = currentTransactionOrNull();
+    if (transaction == null) {
       throw new IllegalStateException("Not in a transaction");
     }
-    return connection;
+    return transaction;
+  }
+
+  static Connection currentConnection() {
+    var transaction = currentTransaction();
+    // the asynchronous operations of the transaction use the same connection
+    transaction.awaitAsync();
+    return transaction.connection();
+  }
+
+  /**
+   * Writes the modifications of the entities loaded by the current transaction to the database,
+   * the entities returned by the repositories, including the ones returned by a {@link Query}.
+   * This is done automatically before the commit and before the queries of the repositories,
+   * so calling this method is only necessary before accessing the modified rows
+   * with {@link #currentConnection()}.
+   *
+   * @throws SQLException if an update fails
+   * @throws IllegalStateException if there is no current transaction
+   */
+  public static void flush() throws SQLException {
+    flush(currentTransaction());
+  }
+
+  private record UpdateGroup(Class<?> type, BitSet modifiedProperties) {}
+  private record Update(Transaction.EntityKey key, Object[] values) {}
+
+  /**
+   * Compares the managed entities with their snapshots, the modified entities are updated
+   * using one batch per entity class and per set of modified columns.
+   */
+  private static void flush(Transaction transaction) throws SQLException {
+    var propertiesMap = new HashMap<Class<?>, PropertyDescriptor[]>();
+    var groups = new LinkedHashMap<UpdateGroup, List<Update>>();
+    for (var entry : transaction.snapshots().entrySet()) {
+      var key = entry.getKey();
+      var entity = transaction.managedEntity(key);
+      if (entity == null) {
+        continue;
+      }
+      var properties = propertiesMap.computeIfAbsent(key.type(), type -> Utils.beanInfo(type).getPropertyDescriptors());
+      var snapshot = entry.getValue();
+      var values = snapshot(entity, properties);
+      var modifiedProperties = new BitSet();
+      for (var i = 0; i < values.length; i++) {
+        // the primary key identifies the row, it is not updated
+        if (!Objects.deepEquals(snapshot[i], values[i]) && !properties[i].getReadMethod().isAnnotationPresent(Id.class)) {
+          modifiedProperties.set(i);
+        }
+      }
+      if (!modifiedProperties.isEmpty()) {
+        groups.computeIfAbsent(new UpdateGroup(key.type(), modifiedProperties), __ -> new ArrayList<>())
+            .add(new Update(key, values));
+      }
+    }
+    var connection = transaction.connection();
+    for (var group : groups.entrySet()) {
+      var type = group.getKey().type();
+      var modifiedProperties = group.getKey().modifiedProperties();
+      var properties = propertiesMap.get(type);
+      var idProperty = Arrays.stream(properties)
+          .filter(property -> property.getReadMethod().isAnnotationPresent(Id.class))
+          .findFirst()
+          .orElseThrow();
+      var query = "UPDATE " + findTableName(type) + " SET " +
+          modifiedProperties.stream()
+              .mapToObj(i -> findColumnName(properties[i]) + " = ?")
+              .collect(Collectors.joining(", ")) +
+          " WHERE " + findColumnName(idProperty) + " = ?;";
+      var updates = group.getValue();
+      try (var statement = connection.prepareStatement(query)) {
+        for (var update : updates) {
+          var index = 1;
+          for (var i = modifiedProperties.nextSetBit(0); i >= 0; i = modifiedProperties.nextSetBit(i + 1)) {
+            statement.setObject(index++, update.values[i]);
+          }
+          statement.setObject(index, update.key.id());
+          statement.addBatch();
+        }
+        statement.executeBatch();
+      }
+      // no cache to invalidate, a @Cacheable entity is a record and a record is never snapshotted
+      for (var update : updates) {
+        transaction.snapshot(update.key, update.values);
+      }
+    }
+  }
+
+  /**
+   * Returns the column values of the properties of an entity,
+   * the value of a property without column, like the property "class", is null.
+   */
+  private static Object[] snapshot(Object entity, PropertyDescriptor[] properties) {
+    var values = new Object[properties.length];
+    for (var i = 0; i < properties.length; i++) {
+      var property = properties[i];
+      if (isColumn(property)) {
+        values[i] = columnValue(property, Utils.invokeMethod(entity, property.getReadMethod()));
+      }
+    }
+    return values;
   }
 
   static String findTableName(Class<?> bean) {
@@ -118,10 +362,53 @@ public final class ORM {
     return column == null ? property.getName() : column.value();
   }
 
+  /**
+   * The second-level cache of an entity class, null if the class is not {@link Cacheable}.
+   */
+  private static final ClassValue<EntityCache> ENTITY_CACHE_CLASS_VALUE = new ClassValue<>() {
+    @Override
+    protected EntityCache computeValue(Class<?> type) {
+      var cacheable = type.getAnnotation(Cacheable.class);
+      return cacheable == null ? null : EntityCache.of(cacheable);
+    }
+  };
+
+  private static EntityCache entityCache(Class<?> beanType) {
+    var cache = ENTITY_CACHE_CLASS_VALUE.get(beanType);
+    if (cache == null) {
+      throw new IllegalStateException(beanType.getName() + " is not annotated with @Cacheable");
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the statistics of the second-level cache of an entity class.
+   *
+   * @param beanType a class annotated with {@link Cacheable}
+   * @return the statistics of the cache
+   * @throws IllegalStateException if the class is not annotated with {@link Cacheable}
+   */
+  public static CacheStats cacheStats(Class<?> beanType) {
+    Objects.requireNonNull(beanType);
+    return entityCache(beanType).stats();
+  }
+
+  /**
+   * Removes all the entities of the second-level cache of an entity class,
+   * necessary if the table is modified without using a repository.
+   *
+   * @param beanType a class annotated with {@link Cacheable}
+   * @throws IllegalStateException if the class is not annotated with {@link Cacheable}
+   */
+  public static void clearCache(Class<?> beanType) {
+    Objects.requireNonNull(beanType);
+    entityCache(beanType).clear();
+  }
+
   private static String createTableQuery(Class<?> bean) {
     var beanInfo = Utils.beanInfo(bean);
     var params = Arrays.stream(beanInfo.getPropertyDescriptors())
-            .filter(property -> !property.getName().equals("class"))
+            .filter(ORM::isColumn)
             .map(ORM::getLineForColumn)
             .collect(Collectors.joining(",\n", "(", ")"));
 
@@ -133,7 +420,11 @@ public final class ORM {
 //    if (property.getWriteMethod() == null) {
 //      throw new IllegalStateException("no setter for " + property.getName());
 //    }
-    return findColumnName(property) + " " + TYPE_MAPPING.get(property.getPropertyType()) +
+    // the column of a many-to-one association contains the primary key of the referenced entity
+    var type = isManyToOne(property) ?
+        ENTITY_METADATA_CLASS_VALUE.get(findTargetEntity(property)).idProperty().getPropertyType() :
+        property.getPropertyType();
+    return findColumnName(property) + " " + TYPE_MAPPING.get(type) +
            (property.getPropertyType().isPrimitive() ? " NOT NULL" : "") +
            (property.getReadMethod().isAnnotationPresent(Id.class) ? " PRIMARY KEY" : "") +
            (property.getReadMethod().isAnnotationPresent(GeneratedValue.class) ? " AUTO_INCREMENT" : "");
@@ -148,6 +439,25 @@ public final class ORM {
     connection.commit();
   }
 
+  /**
+   * Creates an asynchronous repository, each operation runs on a virtual thread,
+   * either in the current transaction or in its own transaction on the datasource.
+   *
+   * @param typeRepository the repository interface to implement
+   * @param dataSource the datasource used by the operations called outside a transaction
+   * @param <T>            the type manipulated by the repository
+   * @param <ID>           the primary key type
+   * @param <REPO>         a repository (or subtype of repository)
+   * @return an asynchronous repository
+   * @see AsyncRepository
+   */
+  public static <T, ID, REPO extends Repository<T, ID>> AsyncRepository<T, ID, REPO> createAsyncRepository(
+      Class<? extends REPO> typeRepository, DataSource dataSource) {
+    Objects.requireNonNull(typeRepository);
+    Objects.requireNonNull(dataSource);
+    return new AsyncRepository<>(createRepository(typeRepository), dataSource);
+  }
+
   /**
    * Creates a repository which is a class generated at runtime implemented by the proxy
    *
@@ -161,14 +471,41 @@ public final class ORM {
     var beanClass = findBeanTypeFromRepository(typeRepository);
     var tableName = findTableName(beanClass);
     var beanInfo = Utils.beanInfo(beanClass);
-    var defaultConstructor = Utils.defaultConstructor(beanClass);
+    var constructor = Utils.entityConstructor(beanClass);
     var idProperty = findId(beanInfo);
+    var findByIdQuery = "SELECT * FROM " + tableName + " WHERE " + (idProperty == null ? null :
+        findColumnName(idProperty)) + " = ?;";
+    var cache = idProperty == null ? null : ENTITY_CACHE_CLASS_VALUE.get(beanClass);
+    var metadata = ENTITY_METADATA_CLASS_VALUE.get(beanClass);
+    if (cache != null && metadata.hasAssociations()) {
+      throw new IllegalStateException("an entity with associations can not be @Cacheable " + beanClass.getName());
+    }
+    if (cache != null && !beanClass.isRecord()) {
+      // a cached instance is shared by the transactions, a mutable bean could be modified by any of them
+      throw new IllegalStateException("a @Cacheable entity should be a record " + beanClass.getName());
+    }
+    var derivedQueries = Arrays.stream(typeRepository.getMethods())
+        .filter(method -> method.getDeclaringClass() != Repository.class)
+        .filter(method -> !method.isDefault() && !Modifier.isStatic(method.getModifiers()))
+        .filter(method -> !method.isAnnotationPresent(Query.class) && DerivedQuery.isDerivedQuery(method))
+        .collect(Collectors.toMap(method -> method,
+            method -> DerivedQuery.parse(method, beanClass, beanInfo, tableName)));
+    var projectionTypes = new HashMap<Method, Class<?>>();
+    for (var method : typeRepository.getMethods()) {
+      var projectionType = method.isAnnotationPresent(Query.class) ? findProjectionType(method, beanClass) : null;
+      if (projectionType != null) {
+        projectionTypes.put(method, projectionType);
+      }
+    }
 
     return typeRepository.cast(Proxy.newProxyInstance(typeRepository.getClassLoader(), // usefull at runtime to generate the class
             new Class<?>[]{typeRepository},       // list of interfaces the generated class needs to implement
             (proxy, method, args) -> {  // how to run methods of the generated class
               var methodName = method.getName();
-              var connection = currentConnection();
+              var transaction = currentTransaction();
+              // the asynchronous operations of the transaction use the same connection
+              transaction.awaitAsync();
+              var connection = transaction.connection();
 
               if (method.getDeclaringClass() == Object.class) {
                 throw new UnsupportedOperationException(methodName + " unsupported");
@@ -177,30 +514,88 @@ public final class ORM {
               try {
                 var query = method.getAnnotation(Query.class);
                 if (query != null) {
-                  return findAll(connection, query.value(), beanInfo, defaultConstructor, args);
+                  flush(transaction);
+                  if (method.isAnnotationPresent(Modifying.class)) {
+                    return executeUpdate(transaction, query.value(), beanClass, cache, method.getReturnType(), args);
+                  }
+                  if (method.getReturnType() == Slice.class) {
+                    return findSlice(transaction, metadata, query.value(), args);
+                  }
+                  var projectionType = projectionTypes.get(method);
+                  var result = projectionType != null ?
+                      findAllProjections(connection, query.value(), projectionType, args) :
+                      findEntities(transaction, metadata, query.value(), args);
+                  return queryResult(method.getReturnType(), result);
                 }
                 return switch (methodName) {
-                  case "findAll" -> findAll(connection, "SELECT * FROM " + tableName, beanInfo,
-                          defaultConstructor); // List.of();   // for now
-                  case "save" -> save(connection, tableName, beanInfo, args[0], idProperty); // List.of()
-                  case "findById" -> findAll(connection,
-                          "SELECT * FROM " + tableName + " WHERE " + (idProperty == null ? null :
-                                  findColumnName(idProperty)) + " = ?;",
-                          beanInfo, defaultConstructor, args).stream().findFirst();
+                  case "findAll" -> {
+                    flush(transaction);
+                    if (args != null) {
+                      var pageRequest = Objects.requireNonNull((PageRequest) args[0], "pageRequest is null");
+                      var idColumn = findColumnName(requireId(idProperty, beanClass));
+                      var entities = findEntities(transaction, metadata,
+                          sliceQuery("SELECT * FROM " + tableName, false, idColumn, pageRequest),
+                          sliceParameters(new Object[0], pageRequest));
+                      yield toSlice(entities, pageRequest, idProperty);
+                    }
+                    yield findEntities(transaction, metadata, "SELECT * FROM " + tableName);
+                  }
+                  case "save" -> {
+                    var entity = save(connection, tableName, beanInfo, args[0], idProperty);
+                    var id = idProperty == null ? null : Utils.invokeMethod(entity, idProperty.getReadMethod());
+                    if (id != null) {
+                      var key = new Transaction.EntityKey(beanClass, id);
+                      transaction.replaceManaged(key, entity);
+                      if (!beanClass.isRecord()) {
+                        transaction.snapshot(key, snapshot(entity, beanInfo.getPropertyDescriptors()));
+                      }
+                      if (cache != null) {
+                        invalidate(transaction, cache, beanClass, id);
+                      }
+                    }
+                    yield entity;
+                  }
+                  case "deleteById" -> {
+                    var id = Objects.requireNonNull(args[0], "id is null");
+                    deleteAllById(transaction, tableName, beanClass, requireId(idProperty, beanClass), cache, List.of(id));
+                    yield null;
+                  }
+                  case "deleteAllById" -> {
+                    var ids = List.copyOf((Collection<?>) args[0]);
+                    yield deleteAllById(transaction, tableName, beanClass, requireId(idProperty, beanClass), cache, ids);
+                  }
+                  case "parallelScan" -> {
+                    var partitions = (int) args[0];
+                    if (partitions <= 0) {
+                      throw new IllegalArgumentException("partitions <= 0");
+                    }
+                    flush(transaction);
+                    yield parallelScan(transaction, metadata, partitions);
+                  }
+                  case "findById" -> {
+                    var id = args[0];
+                    if (id == null) {
+                      yield Optional.empty();
+                    }
+                    var managed = transaction.managedEntity(new Transaction.EntityKey(beanClass, id));
+                    if (managed != null) {
+                      yield Optional.of(managed);
+                    }
+                    if (cache != null) {
+                      yield findByIdUsingCache(cache, beanClass, connection, findByIdQuery, beanInfo, constructor, id)
+                          .map(entity -> manage(transaction, beanClass, id, entity));
+                    }
+                    yield findEntities(transaction, metadata, findByIdQuery, id).stream().findFirst();
+                  }
 
                   case "equals", "hashCode", "toString" ->
                           throw new UnsupportedOperationException(methodName + " unsupported");
                   default -> {
-                    if (methodName.startsWith("findBy")) {
-                      var name = methodName.substring("findBy".length());
-                      var propertyName = Introspector.decapitalize(name);
-                      var property = findProperty(beanInfo, propertyName);
-                      yield findAll(connection, """
-                                      SELECT * FROM %s WHERE %s = ?\
-                                      """.formatted(tableName, findColumnName(property)), beanInfo,
-                              defaultConstructor, args[0]).stream().findFirst();
+                    var derivedQuery = derivedQueries.get(method);
+                    if (derivedQuery == null) {
+                      throw new IllegalStateException("unknown method " + method);
                     }
-                    throw new IllegalStateException("unknown method " + method);
+                    yield executeDerivedQuery(transaction, derivedQuery, metadata, cache, args);
                   }
                 };
               } catch (SQLException e) {
@@ -209,37 +604,885 @@ public final class ORM {
             }));
   }
 
-  static Object toEntityClass(ResultSet resultSet, BeanInfo beanInfo,
-                              Constructor<?> constructor) throws SQLException {
-    var instance = Utils.newInstance(constructor);
+  @FunctionalInterface
+  interface RowMapper {
+    Object map(ResultSet resultSet) throws SQLException;
+  }
+
+  @FunctionalInterface
+  interface RowMapperFactory {
+    RowMapper create(ResultSetMetaData metaData) throws SQLException;
+  }
+
+  /**
+   * cache of the row mappers of an entity class or a projection, indexed by the column labels of the rows.
+   * The queries that return the same columns share a row mapper, so the column to setter resolution is done only once
+   * and the cache does not grow with the number of queries (e.g. one slice query per page size).
+   */
+  private static final ClassValue<ConcurrentHashMap<List<String>, RowMapper>> ROW_MAPPERS_CLASS_VALUE = new ClassValue<>() {
+    @Override
+    protected ConcurrentHashMap<List<String>, RowMapper> computeValue(Class<?> type) {
+      return new ConcurrentHashMap<>();
+    }
+  };
+
+  private static Map<String, Integer> findPropertyIndexesByColumnName(PropertyDescriptor[] properties) {
+    var map = new HashMap<String, Integer>();
+    for (var i = 0; i < properties.length; i++) {
+      var property = properties[i];
+      // the associations are not set by the row mappers
+      if (property.getName().equals("class") || isManyToOne(property) || isOneToMany(property)) {
+        continue;
+      }
+      map.put(findColumnName(property).toUpperCase(Locale.ROOT), i);
+    }
+    return map;
+  }
+
+  static RowMapper createRowMapper(ResultSetMetaData metaData, BeanInfo beanInfo,
+                                   Constructor<?> constructor) throws SQLException {
+    var isRecord = constructor.getDeclaringClass().isRecord();
     var properties = beanInfo.getPropertyDescriptors();
-    var index = 1;
-    for (PropertyDescriptor property : properties) {
-      if (property.getName().equals("class")) {
+    var propertyIndexes = findPropertyIndexesByColumnName(properties);
+    var columnCount = metaData.getColumnCount();
+    var columns = new int[columnCount];
+    var indexes = new int[columnCount];
+    var count = 0;
+    for (var column = 1; column <= columnCount; column++) {
+      var index = propertyIndexes.get(metaData.getColumnLabel(column).toUpperCase(Locale.ROOT));
+      if (index == null || (!isRecord && properties[index].getWriteMethod() == null)) {
+        continue;
+      }
+      columns[count] = column;
+      indexes[count] = index;
+      count++;
+    }
+    var length = count;
+    if (isRecord) {
+      // read all the columns first, then call the canonical constructor once
+      var defaultValues = Arrays.stream(properties)
+          .map(property -> defaultValue(property.getPropertyType()))
+          .toArray();
+      return resultSet -> {
+        var args = defaultValues.clone();
+        for (var i = 0; i < length; i++) {
+          args[indexes[i]] = resultSet.getObject(columns[i]);
+        }
+        return Utils.newInstance(constructor, args);
+      };
+    }
+    var setters = Arrays.stream(indexes, 0, length)
+        .mapToObj(index -> properties[index].getWriteMethod())
+        .toArray(Method[]::new);
+    return resultSet -> {
+      var instance = Utils.newInstance(constructor);
+      for (var i = 0; i < length; i++) {
+        Utils.invokeMethod(instance, setters[i], resultSet.getObject(columns[i]));
+      }
+      return instance;
+    };
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    return type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+  }
+
+  /**
+   * Creates the row mapper of a projection, a record or an interface, the components or the getters
+   * are bound to the columns of the query that have the same label, the other components
+   * or getters have their default value.
+   */
+  static RowMapper createProjectionRowMapper(ResultSetMetaData metaData, Class<?> projectionType) throws SQLException {
+    if (projectionType.isRecord()) {
+      return createRowMapper(metaData, Utils.beanInfo(projectionType), Utils.canonicalConstructor(projectionType));
+    }
+    var properties = Arrays.stream(Utils.beanInfo(projectionType).getPropertyDescriptors())
+        .filter(property -> property.getReadMethod() != null)
+        .toArray(PropertyDescriptor[]::new);
+    var propertyIndexes = findPropertyIndexesByColumnName(properties);
+    var columnCount = metaData.getColumnCount();
+    var columns = new int[columnCount];
+    var indexes = new int[columnCount];
+    var count = 0;
+    for (var column = 1; column <= columnCount; column++) {
+      var index = propertyIndexes.get(metaData.getColumnLabel(column).toUpperCase(Locale.ROOT));
+      if (index == null) {
         continue;
       }
-      var writeMethod = property.getWriteMethod();
-      if (writeMethod != null) {
-        var value = resultSet.getObject(index);
-        Utils.invokeMethod(instance, writeMethod, value);
+      columns[count] = column;
+      indexes[count] = index;
+      count++;
+    }
+    var length = count;
+    var getterIndexes = new HashMap<Method, Integer>();
+    for (var i = 0; i < properties.length; i++) {
+      getterIndexes.put(properties[i].getReadMethod(), i);
+    }
+    var defaultValues = Arrays.stream(properties)
+        .map(property -> defaultValue(property.getPropertyType()))
+        .toArray();
+    var names = Arrays.stream(properties).map(PropertyDescriptor::getName).toArray(String[]::new);
+    return resultSet -> {
+      var values = defaultValues.clone();
+      for (var i = 0; i < length; i++) {
+        values[indexes[i]] = resultSet.getObject(columns[i]);
+      }
+      return Proxy.newProxyInstance(projectionType.getClassLoader(), new Class<?>[] { projectionType },
+          new ProjectionHandler(projectionType, names, getterIndexes, values));
+    };
+  }
+
+  /**
+   * The implementation of an interface projection, the getters return the values of the columns,
+   * equals/hashCode/toString are based on the values.
+   */
+  private record ProjectionHandler(Class<?> projectionType, String[] names, Map<Method, Integer> getterIndexes,
+                                   Object[] values) implements InvocationHandler {
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      var index = getterIndexes.get(method);
+      if (index != null) {
+        return values[index];
+      }
+      if (method.isDefault()) {
+        return InvocationHandler.invokeDefault(proxy, method, args);
       }
-      index++;
+      return switch (method.getName()) {
+        case "equals" -> args[0] != null && Proxy.isProxyClass(args[0].getClass())
+            && Proxy.getInvocationHandler(args[0]) instanceof ProjectionHandler handler
+            && handler.projectionType == projectionType && Arrays.equals(handler.values, values);
+        case "hashCode" -> Arrays.hashCode(values);
+        case "toString" -> IntStream.range(0, names.length)
+            .mapToObj(i -> names[i] + "=" + values[i])
+            .collect(Collectors.joining(", ", projectionType.getSimpleName() + "[", "]"));
+        default -> throw new UnsupportedOperationException(method.getName() + " unsupported");
+      };
     }
-    return instance;
+  }
+
+  /**
+   * Returns the type of the projection returned by a method or null if the method returns entities.
+   * A projection is a record or an interface that is not the entity class,
+   * returned directly or as the type argument of a {@link List}, an {@link Optional} or a {@link Slice}.
+   */
+  static Class<?> findProjectionType(Method method, Class<?> beanClass) {
+    var returnType = method.getGenericReturnType();
+    var elementType = returnType;
+    if (returnType instanceof ParameterizedType parameterizedType) {
+      elementType = parameterizedType.getActualTypeArguments()[0];
+    } else if (returnType == List.class || returnType == Optional.class || returnType == Slice.class) {
+      return null;
+    }
+    if (elementType instanceof Class<?> type && type != beanClass && (type.isRecord() || type.isInterface())) {
+      return type;
+    }
+    return null;
+  }
+
+  static RowMapper findRowMapper(ResultSetMetaData metaData, Class<?> type,
+                                 RowMapperFactory rowMapperFactory) throws SQLException {
+    var columnCount = metaData.getColumnCount();
+    var labels = new String[columnCount];
+    for (var column = 1; column <= columnCount; column++) {
+      labels[column - 1] = metaData.getColumnLabel(column).toUpperCase(Locale.ROOT);
+    }
+    var key = List.of(labels);
+    var rowMappers = ROW_MAPPERS_CLASS_VALUE.get(type);
+    var rowMapper = rowMappers.get(key);
+    if (rowMapper == null) {
+      rowMapper = rowMapperFactory.create(metaData);
+      var previous = rowMappers.putIfAbsent(key, rowMapper);
+      if (previous != null) {
+        return previous;
+      }
+    }
+    return rowMapper;
+  }
+
+  static int rowMapperCount(Class<?> type) {
+    return ROW_MAPPERS_CLASS_VALUE.get(type).size();
+  }
+
+  /**
+   * The mapping of an entity class, the associations are the properties annotated
+   * with {@link ManyToOne} or {@link OneToMany}.
+   */
+  private record EntityMetadata(Class<?> type, String tableName, BeanInfo beanInfo, Constructor<?> constructor,
+                                PropertyDescriptor idProperty, List<PropertyDescriptor> manyToOnes,
+                                List<PropertyDescriptor> oneToManys) {
+    boolean hasAssociations() {
+      return !manyToOnes.isEmpty() || !oneToManys.isEmpty();
+    }
+  }
+
+  private static final ClassValue<EntityMetadata> ENTITY_METADATA_CLASS_VALUE = new ClassValue<>() {
+    @Override
+    protected EntityMetadata computeValue(Class<?> type) {
+      var beanInfo = Utils.beanInfo(type);
+      var properties = Arrays.stream(beanInfo.getPropertyDescriptors())
+          .filter(property -> !property.getName().equals("class"))
+          .toList();
+      var manyToOnes = properties.stream().filter(ORM::isManyToOne).toList();
+      var oneToManys = properties.stream().filter(ORM::isOneToMany).toList();
+      if (!manyToOnes.isEmpty() || !oneToManys.isEmpty()) {
+        // the associations are set after the entity is created, so cycles between entities are possible
+        if (properties.stream().filter(p -> isManyToOne(p) || isOneToMany(p)).anyMatch(p -> p.getWriteMethod() == null)) {
+          throw new IllegalStateException("the associations of " + type.getName() + " should have a setter");
+        }
+        if (findId(beanInfo) == null) {
+          throw new IllegalStateException("an entity with associations should have an @Id " + type.getName());
+        }
+      }
+      return new EntityMetadata(type, findTableName(type), beanInfo, Utils.entityConstructor(type), findId(beanInfo),
+          manyToOnes, oneToManys);
+    }
+  };
+
+  static boolean isManyToOne(PropertyDescriptor property) {
+    var getter = property.getReadMethod();
+    return getter != null && getter.isAnnotationPresent(ManyToOne.class);
+  }
+
+  static boolean isOneToMany(PropertyDescriptor property) {
+    var getter = property.getReadMethod();
+    return getter != null && getter.isAnnotationPresent(OneToMany.class);
+  }
+
+  /**
+   * Returns true if the property is stored in a column of the table of the entity.
+   */
+  static boolean isColumn(PropertyDescriptor property) {
+    return !property.getName().equals("class") && !isOneToMany(property);
+  }
+
+  private static Class<?> findTargetEntity(PropertyDescriptor property) {
+    var targetEntity = property.getReadMethod().getAnnotation(ManyToOne.class).targetEntity();
+    if (targetEntity != void.class) {
+      return targetEntity;
+    }
+    if (property.getPropertyType().isInterface()) {
+      throw new IllegalStateException("the target entity of the lazy property " + property.getName() + " is not specified");
+    }
+    return property.getPropertyType();
+  }
+
+  private static EntityMetadata findTargetMetadata(PropertyDescriptor property) {
+    var target = ENTITY_METADATA_CLASS_VALUE.get(findTargetEntity(property));
+    if (target.idProperty() == null) {
+      throw new IllegalStateException("the target entity of " + property.getName() + " has no @Id");
+    }
+    return target;
+  }
+
+  private static EntityMetadata findElementMetadata(PropertyDescriptor property) {
+    if (property.getPropertyType() != List.class
+        || !(property.getReadMethod().getGenericReturnType() instanceof ParameterizedType parameterizedType)
+        || !(parameterizedType.getActualTypeArguments()[0] instanceof Class<?> elementType)) {
+      throw new IllegalStateException("the one-to-many property " + property.getName() + " should be a List of entities");
+    }
+    return ENTITY_METADATA_CLASS_VALUE.get(elementType);
+  }
+
+  /**
+   * Returns the value of the column of a property, the primary key for a many-to-one association.
+   */
+  static Object columnValue(PropertyDescriptor property, Object value) {
+    if (value == null || !isManyToOne(property)) {
+      return value;
+    }
+    if (Proxy.isProxyClass(value.getClass()) && Proxy.getInvocationHandler(value) instanceof LazyReference lazyReference) {
+      return lazyReference.id;
+    }
+    return Utils.invokeMethod(value, findTargetMetadata(property).idProperty().getReadMethod());
+  }
+
+  /**
+   * Runs a query that returns entities, the entities already loaded by the transaction are reused.
+   * The new entities are registered in the transaction, then their associations are loaded,
+   * with one query per association for all the entities (up to {@link #MAX_IN_SIZE}) to avoid one query per entity.
+   */
+  private static List<?> findEntities(Transaction transaction, EntityMetadata metadata, String sqlQuery,
+                                      Object... params) throws SQLException {
+    return findRows(transaction, metadata, sqlQuery, params).entities();
+  }
+
+  private static final Object[] NO_FOREIGN_KEYS = new Object[0];
+
+  /**
+   * The entities returned by a query and the values of their foreign key columns,
+   * in the order of {@link EntityMetadata#manyToOnes()}.
+   * The foreign keys are read from the rows because an entity already managed
+   * may have its many-to-one associations not set yet.
+   */
+  private record Rows(List<Object> entities, List<Object[]> foreignKeys) {}
+
+  private static Rows findRows(Transaction transaction, EntityMetadata metadata, String sqlQuery,
+                               Object... params) throws SQLException {
+    var type = metadata.type();
+    var manyToOnes = metadata.manyToOnes();
+    var entities = new ArrayList<>();
+    var foreignKeys = new ArrayList<Object[]>();
+    boolean complete;
+    try (var statement = transaction.connection().prepareStatement(sqlQuery)) {
+      setParameters(statement, params);
+      try (var resultSet = statement.executeQuery()) {
+        var resultSetMetaData = resultSet.getMetaData();
+        var rowMapper = findRowMapper(resultSetMetaData, type,
+            m -> createRowMapper(m, metadata.beanInfo(), metadata.constructor()));
+        var foreignKeyColumns = findColumns(resultSetMetaData, manyToOnes);
+        complete = hasAllColumns(resultSetMetaData, metadata);
+        while (resultSet.next()) {
+          entities.add(rowMapper.map(resultSet));
+          if (manyToOnes.isEmpty()) {
+            foreignKeys.add(NO_FOREIGN_KEYS);
+            continue;
+          }
+          var values = new Object[foreignKeyColumns.length];
+          for (var i = 0; i < values.length; i++) {
+            values[i] = foreignKeyColumns[i] == 0 ? null : resultSet.getObject(foreignKeyColumns[i]);
+          }
+          foreignKeys.add(values);
+        }
+      }
+    }
+    var idProperty = metadata.idProperty();
+    // an entity with missing columns has default values, managing it would expose those values
+    // to the next queries of the transaction and write them back to the database
+    if (idProperty == null || !complete) {
+      return new Rows(entities, foreignKeys);
+    }
+    var result = new ArrayList<>(entities.size());
+    var newEntities = new ArrayList<>();
+    var newForeignKeys = new ArrayList<Object[]>();
+    for (var i = 0; i < entities.size(); i++) {
+      var entity = entities.get(i);
+      var id = Utils.invokeMethod(entity, idProperty.getReadMethod());
+      if (id == null) {
+        result.add(entity);
+        continue;
+      }
+      var managed = transaction.manage(new Transaction.EntityKey(type, id), entity);
+      result.add(managed);
+      if (managed == entity) {
+        newEntities.add(entity);
+        newForeignKeys.add(foreignKeys.get(i));
+      }
+    }
+    fetchManyToOnes(transaction, metadata, newEntities, newForeignKeys);
+    fetchOneToManys(transaction, metadata, newEntities);
+    // records are immutable, there is no modification to track
+    if (!type.isRecord()) {
+      var properties = metadata.beanInfo().getPropertyDescriptors();
+      for (var entity : newEntities) {
+        var id = Utils.invokeMethod(entity, idProperty.getReadMethod());
+        transaction.snapshotIfAbsent(new Transaction.EntityKey(type, id), __ -> snapshot(entity, properties));
+      }
+    }
+    return new Rows(result, foreignKeys);
+  }
+
+  /**
+   * Returns true if a query returns a column for each property of an entity, including the foreign keys.
+   */
+  private static boolean hasAllColumns(ResultSetMetaData metaData, EntityMetadata metadata) throws SQLException {
+    var labels = new HashSet<String>();
+    for (var column = 1; column <= metaData.getColumnCount(); column++) {
+      labels.add(metaData.getColumnLabel(column).toUpperCase(Locale.ROOT));
+    }
+    return Arrays.stream(metadata.beanInfo().getPropertyDescriptors())
+        .filter(ORM::isColumn)
+        .allMatch(property -> labels.contains(findColumnName(property).toUpperCase(Locale.ROOT)));
+  }
+
+  private static int[] findColumns(ResultSetMetaData metaData, List<PropertyDescriptor> properties) throws SQLException {
+    var columns = new int[properties.size()];
+    for (var column = 1; column <= metaData.getColumnCount(); column++) {
+      var label = metaData.getColumnLabel(column);
+      for (var i = 0; i < columns.length; i++) {
+        if (findColumnName(properties.get(i)).equalsIgnoreCase(label)) {
+          columns[i] = column;
+        }
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * The maximum number of values of an IN, the queries with more values are split.
+   */
+  private static final int MAX_IN_SIZE = 1_024;
+
+  /**
+   * Finds the entities with a column value in a list of values,
+   * using one query per chunk of {@link #MAX_IN_SIZE} values.
+   */
+  private static List<?> findEntitiesByColumn(Transaction transaction, EntityMetadata metadata, String column,
+                                              List<?> values) throws SQLException {
+    return findRowsByColumn(transaction, metadata, column, values).entities();
+  }
+
+  private static Rows findRowsByColumn(Transaction transaction, EntityMetadata metadata, String column,
+                                       List<?> values) throws SQLException {
+    var entities = new ArrayList<>();
+    var foreignKeys = new ArrayList<Object[]>();
+    for (var start = 0; start < values.size(); start += MAX_IN_SIZE) {
+      var chunk = values.subList(start, Math.min(values.size(), start + MAX_IN_SIZE));
+      var size = DerivedQuery.paddedSize(chunk.size());
+      var query = "SELECT * FROM " + metadata.tableName() + " WHERE " + column +
+          " IN (" + "?, ".repeat(size - 1) + "?) ORDER BY " + findColumnName(metadata.idProperty());
+      var params = IntStream.range(0, size).mapToObj(i -> chunk.get(Math.min(i, chunk.size() - 1))).toArray();
+      var rows = findRows(transaction, metadata, query, params);
+      entities.addAll(rows.entities());
+      foreignKeys.addAll(rows.foreignKeys());
+    }
+    return new Rows(entities, foreignKeys);
+  }
+
+  private static void fetchManyToOnes(Transaction transaction, EntityMetadata metadata, List<?> entities,
+                                      List<Object[]> foreignKeys) throws SQLException {
+    var manyToOnes = metadata.manyToOnes();
+    for (var i = 0; i < manyToOnes.size(); i++) {
+      var property = manyToOnes.get(i);
+      var target = findTargetMetadata(property);
+      var lazy = property.getPropertyType().isInterface();
+      var targetsById = new HashMap<Object, Object>();
+      if (!lazy) {
+        var missingIds = new LinkedHashSet<>();
+        for (var values : foreignKeys) {
+          var id = values[i];
+          if (id == null || targetsById.containsKey(id)) {
+            continue;
+          }
+          var managed = transaction.managedEntity(new Transaction.EntityKey(target.type(), id));
+          if (managed != null) {
+            targetsById.put(id, managed);
+          } else {
+            missingIds.add(id);
+          }
+        }
+        var targetGetter = target.idProperty().getReadMethod();
+        for (var targetEntity : findEntitiesByColumn(transaction, target, findColumnName(target.idProperty()),
+            List.copyOf(missingIds))) {
+          targetsById.put(Utils.invokeMethod(targetEntity, targetGetter), targetEntity);
+        }
+      }
+      var setter = property.getWriteMethod();
+      for (var j = 0; j < entities.size(); j++) {
+        var id = foreignKeys.get(j)[i];
+        if (id == null) {
+          continue;
+        }
+        var value = lazy ? lazyReference(property.getPropertyType(), target, id) : targetsById.get(id);
+        if (value == null) {
+          throw new IllegalStateException("no " + target.type().getName() + " with id " + id);
+        }
+        Utils.invokeMethod(entities.get(j), setter, value);
+      }
+    }
+  }
+
+  private static void fetchOneToManys(Transaction transaction, EntityMetadata metadata,
+                                      List<?> entities) throws SQLException {
+    if (entities.isEmpty()) {
+      return;
+    }
+    var idGetter = metadata.idProperty().getReadMethod();
+    var ids = entities.stream().map(entity -> Utils.invokeMethod(entity, idGetter)).toList();
+    for (var property : metadata.oneToManys()) {
+      var element = findElementMetadata(property);
+      var mappedByName = property.getReadMethod().getAnnotation(OneToMany.class).mappedBy();
+      var mappedBy = findProperty(element.beanInfo(), mappedByName);
+      if (!isManyToOne(mappedBy)) {
+        throw new IllegalStateException("the property " + mappedByName + " of " + element.type().getName() + " is not a many-to-one");
+      }
+      var foreignKeyIndex = element.manyToOnes().indexOf(mappedBy);
+      var elementsById = new HashMap<Object, List<Object>>();
+      var rows = findRowsByColumn(transaction, element, findColumnName(mappedBy), ids);
+      for (var j = 0; j < rows.entities().size(); j++) {
+        var id = rows.foreignKeys().get(j)[foreignKeyIndex];
+        elementsById.computeIfAbsent(id, __ -> new ArrayList<>()).add(rows.entities().get(j));
+      }
+      var setter = property.getWriteMethod();
+      for (var i = 0; i < entities.size(); i++) {
+        Utils.invokeMethod(entities.get(i), setter, elementsById.getOrDefault(ids.get(i), new ArrayList<>()));
+      }
+    }
+  }
+
+  private static Object lazyReference(Class<?> interfaceType, EntityMetadata target, Object id) {
+    return Proxy.newProxyInstance(interfaceType.getClassLoader(), new Class<?>[] { interfaceType },
+        new LazyReference(target, id));
+  }
+
+  /**
+   * The implementation of a lazy many-to-one association, the entity is loaded by the current transaction
+   * the first time a method other than the getter of the primary key is called.
+   */
+  private static final class LazyReference implements InvocationHandler {
+    private final EntityMetadata target;
+    private final Object id;
+    private Object entity;
+
+    private LazyReference(EntityMetadata target, Object id) {
+      this.target = target;
+      this.id = id;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getParameterCount() == 0 && method.getName().equals(target.idProperty().getReadMethod().getName())) {
+        return id;
+      }
+      return Utils.invokeMethod(entity(), method, args == null ? new Object[0] : args);
+    }
+
+    private synchronized Object entity() throws SQLException {
+      if (entity == null) {
+        var transaction = currentTransaction();
+        var managed = transaction.managedEntity(new Transaction.EntityKey(target.type(), id));
+        entity = managed != null ? managed :
+            findEntitiesByColumn(transaction, target, findColumnName(target.idProperty()), List.of(id)).stream()
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("no " + target.type().getName() + " with id " + id));
+      }
+      return entity;
+    }
+  }
+
+  /**
+   * Registers an entity loaded from the database in the transaction and records its values
+   * so the modifications can be detected, returns the entity already registered if it exists.
+   */
+  private static Object manage(Transaction transaction, Class<?> beanClass, Object id, Object entity) {
+    var key = new Transaction.EntityKey(beanClass, id);
+    var managed = transaction.manage(key, entity);
+    // records are immutable, there is no modification to track
+    if (managed == entity && !beanClass.isRecord()) {
+      transaction.snapshotIfAbsent(key, __ -> snapshot(entity, Utils.beanInfo(beanClass).getPropertyDescriptors()));
+    }
+    return managed;
+  }
+
+  private static Object executeDerivedQuery(Transaction transaction, DerivedQuery query, EntityMetadata metadata,
+                                            EntityCache cache, Object[] args) throws SQLException {
+    var beanClass = metadata.type();
+    flush(transaction);
+    var connection = transaction.connection();
+    var sqlQuery = query.sql(args);
+    var parameters = query.parameters(args);
+    return switch (query.kind()) {
+      case FIND -> {
+        var projectionType = query.projectionType();
+        if (projectionType != null) {
+          // the projections are not managed, they do not contain all the values of the entities
+          yield query.result(findAllProjections(connection, sqlQuery, projectionType, parameters), args);
+        }
+        yield query.result(findEntities(transaction, metadata, sqlQuery, parameters), args);
+      }
+      case COUNT, EXISTS -> {
+        // no entity is created, only the first column of the first row is read
+        try (var statement = connection.prepareStatement(sqlQuery)) {
+          setParameters(statement, parameters);
+          try (var resultSet = statement.executeQuery()) {
+            var found = resultSet.next();
+            yield query.result(!found ? 0 : query.kind() == DerivedQuery.Kind.COUNT ? resultSet.getLong(1) : 1);
+          }
+        }
+      }
+      case DELETE -> {
+        long count;
+        try (var statement = connection.prepareStatement(sqlQuery)) {
+          setParameters(statement, parameters);
+          count = statement.executeUpdate();
+        }
+        // the primary keys of the deleted rows are not known
+        forgetAll(transaction, beanClass, cache);
+        yield query.result(count);
+      }
+    };
+  }
+
+  /**
+   * Deletes the rows with a DELETE statement per chunk of {@link #MAX_IN_SIZE} primary keys,
+   * the size of the last chunk is rounded to a power of two so only a few different statements are used.
+   */
+  private static int deleteAllById(Transaction transaction, String tableName, Class<?> beanClass,
+                                   PropertyDescriptor idProperty, EntityCache cache,
+                                   List<?> ids) throws SQLException {
+    var connection = transaction.connection();
+    var idColumn = findColumnName(idProperty);
+    var count = 0;
+    for (var start = 0; start < ids.size(); start += MAX_IN_SIZE) {
+      var chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IN_SIZE));
+      var size = DerivedQuery.paddedSize(chunk.size());
+      var query = "DELETE FROM " + tableName + " WHERE " + idColumn +
+          (size == 1 ? " = ?" : " IN (" + "?, ".repeat(size - 1) + "?)");
+      try (var statement = connection.prepareStatement(query)) {
+        for (var i = 0; i < size; i++) {
+          statement.setObject(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+        }
+        count += statement.executeUpdate();
+      }
+    }
+    for (var id : ids) {
+      transaction.forget(new Transaction.EntityKey(beanClass, id));
+      if (cache != null) {
+        invalidate(transaction, cache, beanClass, id);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Runs a query annotated with {@link Modifying}, the rows modified are not known
+   * so all the entities of the repository are removed from the transaction and from the cache.
+   */
+  private static Object executeUpdate(Transaction transaction, String sqlQuery, Class<?> beanClass,
+                                      EntityCache cache, Class<?> returnType, Object[] args) throws SQLException {
+    long count;
+    try (var statement = transaction.connection().prepareStatement(sqlQuery)) {
+      setParameters(statement, args);
+      count = statement.executeUpdate();
+    }
+    forgetAll(transaction, beanClass, cache);
+    if (returnType == void.class) {
+      return null;
+    }
+    if (returnType == long.class || returnType == Long.class) {
+      return count;
+    }
+    if (returnType == int.class || returnType == Integer.class) {
+      return Math.toIntExact(count);
+    }
+    throw new IllegalStateException("invalid return type " + returnType.getName() + " for a @Modifying query");
+  }
+
+  private static void forgetAll(Transaction transaction, Class<?> beanClass, EntityCache cache) {
+    transaction.clearManaged(beanClass);
+    if (cache != null) {
+      cache.clear();
+      transaction.afterCompletion(cache::clear);
+    }
+  }
+
+  /**
+   * Converts the result of a {@link Query} to the return type of the method,
+   * either a list, an optional or the first element or null.
+   */
+  private static Object queryResult(Class<?> returnType, List<?> result) {
+    if (returnType.isAssignableFrom(List.class)) {
+      return result;
+    }
+    if (returnType == Optional.class) {
+      return result.stream().findFirst();
+    }
+    return result.isEmpty() ? null : result.getFirst();
+  }
+
+  private static PropertyDescriptor requireId(PropertyDescriptor idProperty, Class<?> beanClass) {
+    if (idProperty == null) {
+      throw new IllegalStateException("no @Id property in " + beanClass.getName());
+    }
+    return idProperty;
+  }
+
+  /**
+   * Returns the query of a page, the rows are ordered by primary key and the page starts
+   * after the primary key of the last entity of the previous page (keyset pagination),
+   * so the database can seek to the first row using the primary key index instead of skipping rows.
+   * One more row than the size of the page is fetched to know if there is a next page.
+   */
+  static String sliceQuery(String sqlQuery, boolean hasCondition, String idColumn, PageRequest pageRequest) {
+    return sqlQuery +
+        (pageRequest.after() == null ? "" : (hasCondition ? " AND " : " WHERE ") + idColumn + " > ?") +
+        " ORDER BY " + idColumn + " FETCH FIRST " + (pageRequest.size() + 1) + " ROWS ONLY";
+  }
+
+  static Object[] sliceParameters(Object[] params, PageRequest pageRequest) {
+    if (pageRequest.after() == null) {
+      return params;
+    }
+    var parameters = Arrays.copyOf(params, params.length + 1);
+    parameters[params.length] = pageRequest.after();
+    return parameters;
+  }
+
+  static Slice<?> toSlice(List<?> entities, PageRequest pageRequest, PropertyDescriptor idProperty) {
+    if (entities.size() <= pageRequest.size()) {
+      return new Slice<>(entities, null);
+    }
+    var content = entities.subList(0, pageRequest.size());
+    var lastId = Utils.invokeMethod(content.getLast(), idProperty.getReadMethod());
+    return new Slice<>(content, new PageRequest(pageRequest.size(), lastId));
+  }
+
+  /**
+   * Runs a query annotated with {@link Query} as a sub-query of a keyset pagination query,
+   * the query must select the primary key column.
+   */
+  private static Slice<?> findSlice(Transaction transaction, EntityMetadata metadata, String sqlQuery,
+                                    Object[] args) throws SQLException {
+    var idProperty = requireId(metadata.idProperty(), metadata.type());
+    if (args == null || !(args[args.length - 1] instanceof PageRequest pageRequest)) {
+      throw new IllegalStateException("the last parameter of a query returning a slice should be a PageRequest");
+    }
+    var subQuery = sqlQuery.strip();
+    if (subQuery.endsWith(";")) {
+      subQuery = subQuery.substring(0, subQuery.length() - 1);
+    }
+    var query = sliceQuery("SELECT * FROM (" + subQuery + ")", false, findColumnName(idProperty), pageRequest);
+    var params = sliceParameters(Arrays.copyOf(args, args.length - 1), pageRequest);
+    var entities = findEntities(transaction, metadata, query, params);
+    return toSlice(entities, pageRequest, idProperty);
+  }
+
+  private static final Set<Class<?>> INTEGRAL_TYPES = Set.of(
+      long.class, int.class, short.class, byte.class, Long.class, Integer.class, Short.class, Byte.class);
+
+  /**
+   * A range of primary keys, both bounds are included.
+   */
+  record IdRange(long from, long to) {}
+
+  /**
+   * Splits the primary keys between {@code min} and {@code max} in at most {@code partitions} ranges
+   * of the same size, apart from the last one.
+   */
+  static List<IdRange> idRanges(long min, long max, int partitions) {
+    var span = max - min;  // as an unsigned value, never overflows
+    var step = Long.divideUnsigned(span, partitions) + 1;  // ceil((span + 1) / partitions)
+    if (step == 0) {  // all the longs in one partition
+      return List.of(new IdRange(min, max));
+    }
+    var ranges = new ArrayList<IdRange>();
+    for (var offset = 0L; ; offset += step) {
+      var end = offset + step - 1;
+      if (Long.compareUnsigned(end, span) >= 0) {
+        ranges.add(new IdRange(min + offset, max));
+        return ranges;
+      }
+      ranges.add(new IdRange(min + offset, min + end));
+    }
+  }
+
+  /**
+   * Finds the range of the primary keys using the connection of the transaction, then returns a parallel stream
+   * that reads each partition with its own connection, the query of a partition is run when the stream
+   * is consumed, by a thread of the fork-join pool.
+   */
+  private static Stream<?> parallelScan(Transaction transaction, EntityMetadata metadata,
+                                        int partitions) throws SQLException {
+    var idProperty = requireId(metadata.idProperty(), metadata.type());
+    if (!INTEGRAL_TYPES.contains(idProperty.getPropertyType())) {
+      throw new IllegalStateException("a parallel scan requires an integral @Id " + metadata.type().getName());
+    }
+    if (metadata.hasAssociations()) {
+      throw new IllegalStateException("a parallel scan does not support associations " + metadata.type().getName());
+    }
+    var idColumn = findColumnName(idProperty);
+    long min, max;
+    try (var statement = transaction.connection().createStatement();
+         var resultSet = statement.executeQuery(
+             "SELECT MIN(" + idColumn + "), MAX(" + idColumn + ") FROM " + metadata.tableName())) {
+      resultSet.next();
+      min = resultSet.getLong(1);
+      if (resultSet.wasNull()) {  // no row
+        return Stream.empty();
+      }
+      max = resultSet.getLong(2);
+    }
+    var dataSource = transaction.dataSource();
+    var sqlQuery = "SELECT * FROM " + metadata.tableName() + " WHERE " + idColumn + " BETWEEN ? AND ?";
+    return idRanges(min, max, partitions).parallelStream()
+        .flatMap(range -> scanPartition(dataSource, sqlQuery, metadata, range).stream());
+  }
+
+  /**
+   * Reads the entities of a partition, the fork-join pool is told that the thread is blocked
+   * on the database, so it can add a thread to keep the other partitions running.
+   */
+  private static List<?> scanPartition(DataSource dataSource, String sqlQuery, EntityMetadata metadata,
+                                       IdRange range) {
+    var blocker = new ForkJoinPool.ManagedBlocker() {
+      private List<?> entities;
+
+      @Override
+      public boolean block() {
+        try (var connection = dataSource.getConnection()) {
+          entities = findAll(connection, sqlQuery, metadata.beanInfo(), metadata.constructor(), range.from(), range.to());
+        } catch (SQLException e) {
+          throw new UncheckedSQLException(e);
+        }
+        return true;
+      }
+
+      @Override
+      public boolean isReleasable() {
+        return entities != null;
+      }
+    };
+    try {
+      ForkJoinPool.managedBlock(blocker);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UncheckedSQLException(new SQLException("parallel scan interrupted", e));
+    }
+    return blocker.entities;
+  }
+
+  private static Optional<?> findByIdUsingCache(EntityCache cache, Class<?> beanClass, Connection connection,
+                                                String findByIdQuery, BeanInfo beanInfo, Constructor<?> constructor,
+                                                Object id) throws SQLException {
+    // the entities written by the current transaction are not committed so they can not be shared
+    var written = currentTransaction().isWritten(new Transaction.EntityKey(beanClass, id));
+    if (!written) {
+      var entity = cache.get(id);
+      if (entity != null) {
+        return Optional.of(entity);
+      }
+    }
+    var generation = cache.generation();
+    var result = findAll(connection, findByIdQuery, beanInfo, constructor, id).stream().findFirst();
+    if (!written) {
+      result.ifPresent(entity -> cache.put(id, entity, generation));
+    }
+    return result;
+  }
+
+  private static void invalidate(Transaction transaction, EntityCache cache, Class<?> beanClass, Object id) {
+    cache.remove(id);
+    if (transaction.markWritten(new Transaction.EntityKey(beanClass, id))) {
+      // another transaction may have cached the old value in between
+      transaction.afterCompletion(() -> cache.remove(id));
+    }
+  }
+
+  static Object toEntityClass(ResultSet resultSet, BeanInfo beanInfo,
+                              Constructor<?> constructor) throws SQLException {
+    return createRowMapper(resultSet.getMetaData(), beanInfo, constructor).map(resultSet);
   }
 
   static List<?> findAll(Connection connection, String sqlQuery, BeanInfo beanInfo,
                          Constructor<?> constructor, Object... params) throws SQLException {
+    return query(connection, sqlQuery, constructor.getDeclaringClass(),
+        metaData -> createRowMapper(metaData, beanInfo, constructor), params);
+  }
+
+  static List<?> findAllProjections(Connection connection, String sqlQuery, Class<?> projectionType,
+                                    Object... params) throws SQLException {
+    return query(connection, sqlQuery, projectionType,
+        metaData -> createProjectionRowMapper(metaData, projectionType), params);
+  }
+
+  private static List<?> query(Connection connection, String sqlQuery, Class<?> type,
+                               RowMapperFactory rowMapperFactory, Object... params) throws SQLException {
     var list = new ArrayList<>();
     try (var statement = connection.prepareStatement(sqlQuery)) {
-      if (params != null) {
-        for (int i = 0; i < params.length; i++) {
-          statement.setObject(i + 1, params[i]);
-        }
-      }
+      setParameters(statement, params);
       try (var resultSet = statement.executeQuery()) {
+        var rowMapper = findRowMapper(resultSet.getMetaData(), type, rowMapperFactory);
         while (resultSet.next()) {
-          var instance = toEntityClass(resultSet, beanInfo, constructor);
+          var instance = rowMapper.map(resultSet);
           list.add(instance);
         }
       }
@@ -247,14 +1490,22 @@ public final class ORM {
     return list;
   }
 
+  private static void setParameters(PreparedStatement statement, Object[] params) throws SQLException {
+    if (params != null) {
+      for (int i = 0; i < params.length; i++) {
+        statement.setObject(i + 1, params[i]);
+      }
+    }
+  }
+
   static String createSaveQuery(String tableName, BeanInfo beanInfo) {
     var params = Arrays.stream(beanInfo.getPropertyDescriptors())
+            .filter(ORM::isColumn)
             .map(PropertyDescriptor::getName)
-            .filter(name -> !name.equals("class"))
             .collect(Collectors.joining(", ", "(", ")"));
 
     var values = Arrays.stream(beanInfo.getPropertyDescriptors())
-            .filter(property -> !property.getName().equals("class"))
+            .filter(ORM::isColumn)
             .map(property -> "?")
             .collect(Collectors.joining(", ", "(", ")"));
 
@@ -267,11 +1518,11 @@ public final class ORM {
     try (var statement = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
       var index = 1;
       for (var property : beanInfo.getPropertyDescriptors()) {
-        if (property.getName().equals("class")) {
+        if (!isColumn(property)) {
           continue;
         }
         var getter = property.getReadMethod();
-        var value = Utils.invokeMethod(instance, getter);
+        var value = columnValue(property, Utils.invokeMethod(instance, getter));
         statement.setObject(index, value);
         index++;
       }
@@ -281,7 +1532,12 @@ public final class ORM {
           if (resultSet.next()) {
             var key = resultSet.getObject(1);
             var setter = idProperty.getWriteMethod();
-            Utils.invokeMethod(instance, setter, key);
+            if (setter != null) {
+              Utils.invokeMethod(instance, setter, key);
+            } else if (instance.getClass().isRecord()
+                && idProperty.getReadMethod().isAnnotationPresent(GeneratedValue.class)) {
+              return withPropertyValue(instance, beanInfo, idProperty, key);
+            }
           }
         }
       }
@@ -289,6 +1545,17 @@ public final class ORM {
     return instance;
   }
 
+  /**
+   * Returns a copy of a record with the value of one of its component replaced.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T withPropertyValue(T record, BeanInfo beanInfo, PropertyDescriptor property, Object value) {
+    var args = Arrays.stream(beanInfo.getPropertyDescriptors())
+        .map(p -> p.getName().equals(property.getName()) ? value : Utils.invokeMethod(record, p.getReadMethod()))
+        .toArray();
+    return (T) Utils.newInstance(Utils.canonicalConstructor(record.getClass()), args);
+  }
+
   static PropertyDescriptor findId(BeanInfo beanInfo) {
     return Arrays.stream(beanInfo.getPropertyDescriptors())
             .filter(property -> !property.getName().equals("class"))
@@ -0,0 +1,21 @@
+package com.github.forax.framework.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a property of type {@link java.util.List} that contains the entities that reference
+ * this entity with a {@link ManyToOne} property, there is no column for this property.
+ * The lists of the entities returned by a query are loaded with one query for all of them.
+ */
+@Retention(RUNTIME)
+@Target(METHOD)
+public @interface OneToMany {
+  /**
+   * @return the name of the {@link ManyToOne} property of the referencing entity.
+   */
+  String mappedBy();
+}
@@ -0,0 +1,27 @@
+package com.github.forax.framework.orm;
+
+/**
+ * A request for a page of entities ordered by primary key.
+ * A page starts after the primary key of the last entity of the previous page,
+ * so reading a page does not require to skip the rows of the previous pages.
+ *
+ * @param size the maximum number of entities of the page
+ * @param after the primary key of the last entity of the previous page or null for the first page
+ */
+public record PageRequest(int size, Object after) {
+  public PageRequest {
+    if (size <= 0 || size == Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("invalid size " + size);
+    }
+  }
+
+  /**
+   * Returns a request for the first page.
+   *
+   * @param size the maximum number of entities of the page
+   * @return a request for the first page
+   */
+  public static PageRequest ofSize(int size) {
+    return new PageRequest(size, null);
+  }
+}
@@ -6,6 +6,13 @@ import java.lang.annotation.Target;
 import static java.lang.annotation.ElementType.METHOD;
 import static java.lang.annotation.RetentionPolicy.RUNTIME;
 
+/**
+ * The SQL query of a method of a {@link Repository}.
+ *
+ * The entities returned by a query are managed by the current transaction like the ones returned by
+ * {@link Repository#findAll()}: their associations are loaded and their modifications are written
+ * to the database by {@link ORM#flush()}. The projections are not managed.
+ */
 @Retention(RUNTIME)
 @Target(METHOD)
 public @interface Query {
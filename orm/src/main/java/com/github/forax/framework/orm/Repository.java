@@ -1,10 +1,27 @@
 package com.github.forax.framework.orm;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 public interface Repository<T, ID> {
   List<T> findAll();
+  Slice<T> findAll(PageRequest pageRequest);
   Optional<T> findById(ID id);
   T save(T entity);
+  void deleteById(ID id);
+  int deleteAllById(Collection<? extends ID> ids);
+
+  /**
+   * Returns a parallel stream of all the entities, the range of the primary keys is split in partitions
+   * and the partitions are read concurrently, each one on its own connection of the datasource
+   * of the current transaction, so the entities written by the current transaction and not committed
+   * are not visible. The primary key must be an integral number and the entities are not managed
+   * by the current transaction.
+   *
+   * @param partitions the maximum number of partitions
+   * @return a parallel stream of all the entities
+   */
+  Stream<T> parallelScan(int partitions);
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package com.github.forax.framework.orm;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A page of entities ordered by primary key.
+ *
+ * @param content the entities of the page
+ * @param nextPageRequest the request of the next page or null if this page is the last one
+ * @param <T> the type of the entities
+ */
+public record Slice<T>(List<T> content, PageRequest nextPageRequest) {
+  public Slice {
+    content = List.copyOf(Objects.requireNonNull(content));
+  }
+
+  public boolean hasNext() {
+    return nextPageRequest != null;
+  }
+}
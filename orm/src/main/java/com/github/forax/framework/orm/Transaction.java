@@ -0,0 +1,224 @@
+package com.github.forax.framework.orm;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The state of a running transaction, shared by the blocks that join it.
+ */
+final class Transaction {
+  /**
+   * Identifies an entity in a transaction.
+   */
+  record EntityKey(Class<?> type, Object id) {
+    EntityKey {
+      Objects.requireNonNull(type);
+      Objects.requireNonNull(id);
+    }
+  }
+
+  private final DataSource dataSource;
+  private final Connection connection;
+  private final Set<EntityKey> writtenKeys = ConcurrentHashMap.newKeySet();
+  private final ConcurrentHashMap<EntityKey, Object> identityMap = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<EntityKey, Object[]> snapshots = new ConcurrentHashMap<>();
+  private final ArrayList<Runnable> completionActions = new ArrayList<>();
+  private volatile boolean rollbackOnly;
+  private final Object asyncLock = new Object();
+  private CompletableFuture<?> asyncTail = CompletableFuture.completedFuture(null);
+  private volatile Thread asyncThread;  // the thread running the current asynchronous task
+
+  Transaction(DataSource dataSource, Connection connection) {
+    this.dataSource = Objects.requireNonNull(dataSource);
+    this.connection = Objects.requireNonNull(connection);
+  }
+
+  DataSource dataSource() {
+    return dataSource;
+  }
+
+  Connection connection() {
+    return connection;
+  }
+
+  /**
+   * Marks the transaction so it can not be committed, used when a block that joined
+   * the transaction fails even if the enclosing block recovers from the failure.
+   */
+  void setRollbackOnly() {
+    rollbackOnly = true;
+  }
+
+  boolean isRollbackOnly() {
+    return rollbackOnly;
+  }
+
+  /**
+   * Records that an entity was written by this transaction,
+   * its state is not visible to the other transactions until the commit.
+   *
+   * @return true if the entity was not already marked as written
+   */
+  boolean markWritten(EntityKey key) {
+    return writtenKeys.add(key);
+  }
+
+  boolean isWritten(EntityKey key) {
+    return writtenKeys.contains(key);
+  }
+
+  /**
+   * Returns the entity already loaded by this transaction or null.
+   */
+  Object managedEntity(EntityKey key) {
+    return identityMap.get(key);
+  }
+
+  /**
+   * Returns the entity already loaded by this transaction if it exists,
+   * otherwise the entity becomes the entity of the transaction for that key.
+   */
+  Object manage(EntityKey key, Object entity) {
+    var managed = identityMap.putIfAbsent(key, entity);
+    return managed == null ? entity : managed;
+  }
+
+  /**
+   * Replaces the entity of the transaction for that key, used when an entity is saved.
+   */
+  void replaceManaged(EntityKey key, Object entity) {
+    identityMap.put(key, entity);
+  }
+
+  /**
+   * Records the values of a managed entity as they are in the database, if not already recorded.
+   */
+  void snapshotIfAbsent(EntityKey key, Function<? super EntityKey, Object[]> snapshotFunction) {
+    snapshots.computeIfAbsent(key, snapshotFunction);
+  }
+
+  /**
+   * Records the values of a managed entity as they are in the database.
+   */
+  void snapshot(EntityKey key, Object[] values) {
+    snapshots.put(key, values);
+  }
+
+  /**
+   * Returns the values of the managed entities as they are in the database, used to find the modified entities.
+   */
+  Map<EntityKey, Object[]> snapshots() {
+    return snapshots;
+  }
+
+  /**
+   * Forgets an entity, used when its row is deleted.
+   */
+  void forget(EntityKey key) {
+    identityMap.remove(key);
+    snapshots.remove(key);
+  }
+
+  /**
+   * Forgets all the entities loaded, used when the state of the database is rollbacked.
+   */
+  void clearManaged() {
+    identityMap.clear();
+    snapshots.clear();
+  }
+
+  /**
+   * Forgets the entities of a class, used when rows are modified without knowing their primary keys.
+   */
+  void clearManaged(Class<?> type) {
+    identityMap.keySet().removeIf(key -> key.type() == type);
+    snapshots.keySet().removeIf(key -> key.type() == type);
+  }
+
+  /**
+   * Runs a task asynchronously after the tasks previously submitted.
+   * The tasks are chained so they do not run concurrently with each other, but they share the connection
+   * with the thread of the transaction, so this thread must call {@link #awaitAsync()} before using the connection.
+   */
+  <R> CompletableFuture<R> chainAsync(Supplier<? extends R> task, Executor executor) {
+    synchronized (asyncLock) {
+      var future = asyncTail
+          .handle((__, ___) -> null)   // a failed task does not prevent the next ones to run
+          .<R>thenApplyAsync(__ -> runAsync(task), executor);
+      asyncTail = future;
+      return future;
+    }
+  }
+
+  private <R> R runAsync(Supplier<? extends R> task) {
+    asyncThread = Thread.currentThread();
+    try {
+      return task.get();
+    } finally {
+      asyncThread = null;
+    }
+  }
+
+  /**
+   * Waits for the completion of the tasks submitted with {@link #chainAsync(Supplier, Executor)},
+   * including the tasks submitted by those tasks,
+   * the failures are reported to the callers of the tasks and not by this method.
+   * Called by a task, this method returns immediately, the previous tasks are already completed.
+   */
+  void awaitAsync() {
+    if (Thread.currentThread() == asyncThread) {
+      return;
+    }
+    CompletableFuture<?> tail;
+    while (!(tail = asyncTail()).isDone()) {
+      tail.handle((__, ___) -> null).join();
+    }
+  }
+
+  private CompletableFuture<?> asyncTail() {
+    synchronized (asyncLock) {
+      return asyncTail;
+    }
+  }
+
+  /**
+   * Registers an action to run after the transaction is either committed or rollbacked.
+   */
+  void afterCompletion(Runnable action) {
+    Objects.requireNonNull(action);
+    synchronized (completionActions) {
+      completionActions.add(action);
+    }
+  }
+
+  void complete() {
+    RuntimeException exception = null;
+    synchronized (completionActions) {
+      for (var action : completionActions) {
+        try {
+          action.run();
+        } catch (RuntimeException e) {
+          if (exception == null) {
+            exception = e;
+          } else {
+            exception.addSuppressed(e);
+          }
+        }
+      }
+      completionActions.clear();
+    }
+    clearManaged();
+    if (exception != null) {
+      throw exception;
+    }
+  }
+}
@@ -1,11 +1,16 @@
 package com.github.forax.framework.orm;
 
+import java.beans.BeanDescriptor;
 import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.beans.SimpleBeanInfo;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
 
 final class Utils {
   private Utils() {
@@ -13,6 +18,9 @@ final class Utils {
   }
 
   public static BeanInfo beanInfo(Class<?> beanType) {
+    if (beanType.isRecord()) {
+      return recordInfo(beanType);
+    }
     try {
       return Introspector.getBeanInfo(beanType);
     } catch (IntrospectionException e) {
@@ -20,6 +28,47 @@ final class Utils {
     }
   }
 
+  /**
+   * The properties of a record are its components, in declaration order, with no setter.
+   */
+  private static BeanInfo recordInfo(Class<?> recordType) {
+    var properties = Arrays.stream(recordType.getRecordComponents())
+        .map(component -> {
+          try {
+            return new PropertyDescriptor(component.getName(), component.getAccessor(), null);
+          } catch (IntrospectionException e) {
+            throw new IllegalStateException(e);
+          }
+        })
+        .toArray(PropertyDescriptor[]::new);
+    return new SimpleBeanInfo() {
+      @Override
+      public BeanDescriptor getBeanDescriptor() {
+        return new BeanDescriptor(recordType);
+      }
+
+      @Override
+      public PropertyDescriptor[] getPropertyDescriptors() {
+        return properties.clone();
+      }
+    };
+  }
+
+  public static Constructor<?> canonicalConstructor(Class<?> recordType) {
+    var parameterTypes = Arrays.stream(recordType.getRecordComponents())
+        .map(RecordComponent::getType)
+        .toArray(Class<?>[]::new);
+    try {
+      return recordType.getDeclaredConstructor(parameterTypes);
+    } catch (NoSuchMethodException e) {
+      throw (NoSuchMethodError) new NoSuchMethodError("no canonical constructor").initCause(e);
+    }
+  }
+
+  public static Constructor<?> entityConstructor(Class<?> beanType) {
+    return beanType.isRecord() ? canonicalConstructor(beanType) : defaultConstructor(beanType);
+  }
+
   public static Constructor<?> defaultConstructor(Class<?> beanType) {
     try {
       return beanType.getConstructor();
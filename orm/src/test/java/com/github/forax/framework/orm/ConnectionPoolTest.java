@@ -0,0 +1,198 @@
+package com.github.forax.framework.orm;
+
+import org.h2.jdbc.JdbcConnection;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings("static-method")
+public class ConnectionPoolTest {
+  private static JdbcDataSource dataSource(String name) {
+    var dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name);
+    return dataSource;
+  }
+
+  private static final class CountingDataSource extends JdbcDataSource {
+    private int connectionCount;
+
+    private CountingDataSource(String name) {
+      setURL("jdbc:h2:mem:" + name);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+      connectionCount++;
+      return super.getConnection();
+    }
+  }
+
+  @Nested
+  public class Borrow {
+    @Test @Tag("ConnectionPool")
+    public void testConnectionIsReused() throws SQLException {
+      var dataSource = new CountingDataSource("pool-reuse");
+      try(var pool = new ConnectionPool(dataSource, 2)) {
+        try(var connection = pool.getConnection()) {
+          assertTrue(connection.isValid(1));
+        }
+        try(var connection = pool.getConnection()) {
+          assertTrue(connection.isValid(1));
+        }
+        assertEquals(1, dataSource.connectionCount);
+      }
+    }
+
+    @Test @Tag("ConnectionPool")
+    @SuppressWarnings("resource")
+    public void testPoolIsBounded() throws SQLException {
+      try(var pool = new ConnectionPool(dataSource("pool-bounded"), 1, Duration.ofMinutes(1), Duration.ofMillis(10))) {
+        try(var connection = pool.getConnection()) {
+          assertThrows(SQLTransientConnectionException.class, pool::getConnection);
+        }
+        try(var connection = pool.getConnection()) {
+          assertTrue(connection.isValid(1));
+        }
+      }
+    }
+
+    @Test @Tag("ConnectionPool")
+    @SuppressWarnings("resource")
+    public void testConnectionCanNotBeUsedAfterClose() throws SQLException {
+      try(var pool = new ConnectionPool(dataSource("pool-close"), 1)) {
+        var connection = pool.getConnection();
+        connection.close();
+        assertAll(
+            () -> assertTrue(connection.isClosed()),
+            () -> assertThrows(SQLException.class, connection::createStatement)
+        );
+      }
+    }
+
+    @Test @Tag("ConnectionPool")
+    public void testIdleConnectionIsEvicted() throws SQLException {
+      var dataSource = new CountingDataSource("pool-evict");
+      try(var pool = new ConnectionPool(dataSource, 1, Duration.ZERO, Duration.ofSeconds(1))) {
+        try(var connection = pool.getConnection()) {
+          assertTrue(connection.isValid(1));
+        }
+        assertEquals(0, pool.metrics().idleCount());
+        try(var connection = pool.getConnection()) {
+          assertTrue(connection.isValid(1));
+        }
+        assertEquals(2, dataSource.connectionCount);
+      }
+    }
+
+    @Test @Tag("ConnectionPool")
+    public void testPreconditions() {
+      var dataSource = dataSource("pool-preconditions");
+      assertAll(
+          () -> assertThrows(NullPointerException.class, () -> new ConnectionPool(null, 1)),
+          () -> assertThrows(IllegalArgumentException.class, () -> new ConnectionPool(dataSource, 0)),
+          () -> assertThrows(IllegalArgumentException.class,
+              () -> new ConnectionPool(dataSource, 1, Duration.ofSeconds(-1), Duration.ZERO))
+      );
+    }
+  }
+
+  @Nested
+  public class Encapsulation {
+    @Test @Tag("ConnectionPool")
+    public void testUnderlyingConnectionIsNotExposed() throws SQLException {
+      try(var pool = new ConnectionPool(dataSource("pool-encapsulation"), 1)) {
+        try(var connection = pool.getConnection();
+            var statement = connection.createStatement();
+            var resultSet = statement.executeQuery("SELECT 1")) {
+          assertAll(
+              () -> assertSame(connection, connection.unwrap(Connection.class)),
+              () -> assertThrows(SQLException.class, () -> connection.unwrap(JdbcConnection.class)),
+              () -> assertFalse(connection.isWrapperFor(JdbcConnection.class)),
+              () -> assertSame(connection, statement.getConnection()),
+              () -> assertSame(connection, connection.getMetaData().getConnection()),
+              () -> assertSame(statement, resultSet.getStatement())
+          );
+        }
+      }
+    }
+
+    @Test @Tag("ConnectionPool")
+    public void testEqualsAndHashCodeUseTheIdentityOfTheBorrowedConnection() throws SQLException {
+      try(var pool = new ConnectionPool(dataSource("pool-identity"), 1)) {
+        Connection connection1;
+        try(var connection = pool.getConnection()) {
+          connection1 = connection;
+          assertEquals(connection, connection);
+          assertEquals(System.identityHashCode(connection), connection.hashCode());
+        }
+        try(var connection2 = pool.getConnection()) {
+          assertNotEquals(connection1, connection2);
+        }
+      }
+    }
+
+    @Test @Tag("ConnectionPool")
+    @SuppressWarnings("resource")
+    public void testConnectionReleasedAfterCloseIsNotPooled() throws SQLException {
+      var pool = new ConnectionPool(dataSource("pool-release-after-close"), 1);
+      var connection = pool.getConnection();
+      pool.close();
+      connection.close();
+      assertEquals(0, pool.metrics().idleCount());
+    }
+  }
+
+  @Nested
+  public class Monitoring {
+    @Test @Tag("ConnectionPool")
+    public void testActiveAndIdleCount() throws SQLException {
+      try(var pool = new ConnectionPool(dataSource("pool-metrics"), 2)) {
+        try(var connection1 = pool.getConnection();
+            var connection2 = pool.getConnection()) {
+          assertEquals(2, pool.metrics().activeCount());
+        }
+        var metrics = pool.metrics();
+        assertAll(
+            () -> assertEquals(0, metrics.activeCount()),
+            () -> assertEquals(2, metrics.idleCount()),
+            () -> assertEquals(2, metrics.borrowCount())
+        );
+      }
+    }
+  }
+
+  @Nested
+  public class Transactions {
+    @Test @Tag("ConnectionPool")
+    public void testTransactionsShareThePooledConnection() throws SQLException {
+      interface PersonRepository extends Repository<ORMTest.Person, Long> {}
+
+      var repository = ORM.createRepository(PersonRepository.class);
+      try(var pool = new ConnectionPool(dataSource("pool-transaction"), 1)) {
+        ORM.transaction(pool, () -> {
+          ORM.createTable(ORMTest.Person.class);
+          repository.save(new ORMTest.Person(1L, "iga"));
+        });
+        ORM.transaction(pool, () -> {
+          assertEquals(List.of(new ORMTest.Person(1L, "iga")), repository.findAll());
+        });
+        assertEquals(1, pool.metrics().idleCount());
+      }
+    }
+  }
+}
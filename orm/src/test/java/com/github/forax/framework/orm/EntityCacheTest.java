@@ -0,0 +1,109 @@
+package com.github.forax.framework.orm;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings("static-method")
+public class EntityCacheTest {
+  @Nested
+  public class Lru {
+    @Test @Tag("EntityCache")
+    public void testLeastRecentlyUsedIsEvicted() {
+      var cache = new EntityCache(Cacheable.Eviction.LRU, 2, 0);
+      cache.put(1, "one", cache.generation());
+      cache.put(2, "two", cache.generation());
+      cache.get(1);
+      cache.put(3, "three", cache.generation());
+      assertAll(
+          () -> assertEquals("one", cache.get(1)),
+          () -> assertNull(cache.get(2)),
+          () -> assertEquals("three", cache.get(3)),
+          () -> assertEquals(1, cache.stats().evictionCount())
+      );
+    }
+
+    @Test @Tag("EntityCache")
+    public void testTimeToLive() throws InterruptedException {
+      var cache = new EntityCache(Cacheable.Eviction.LRU, 10, 1);
+      cache.put(1, "one", cache.generation());
+      Thread.sleep(5);
+      assertNull(cache.get(1));
+    }
+
+    @Test @Tag("EntityCache")
+    public void testPreconditions() {
+      assertAll(
+          () -> assertThrows(NullPointerException.class, () -> new EntityCache(null, 1, 0)),
+          () -> assertThrows(IllegalArgumentException.class, () -> new EntityCache(Cacheable.Eviction.LRU, 0, 0)),
+          () -> assertThrows(IllegalArgumentException.class, () -> new EntityCache(Cacheable.Eviction.LRU, 1, -1))
+      );
+    }
+  }
+
+  @Nested
+  public class TinyLfu {
+    @Test @Tag("EntityCache")
+    public void testFrequentlyUsedEntitiesSurviveAScan() {
+      var cache = new EntityCache(Cacheable.Eviction.W_TINY_LFU, 100, 0);
+      IntStream.range(0, 100).forEach(i -> cache.put(i, "hot" + i, cache.generation()));
+      for (var round = 0; round < 5; round++) {
+        IntStream.range(0, 100).forEach(cache::get);
+      }
+      // a scan of entities used only once
+      IntStream.range(1_000, 2_000).forEach(i -> cache.put(i, "cold" + i, cache.generation()));
+      var hotCount = IntStream.range(0, 100).filter(i -> cache.get(i) != null).count();
+      assertAll(
+          () -> assertEquals(100, cache.size()),
+          () -> assertTrue(hotCount > 90, "hot entities " + hotCount)
+      );
+    }
+
+    @Test @Tag("EntityCache")
+    public void testMaxSizeIsRespected() {
+      for (var maxSize = 1; maxSize <= 10; maxSize++) {
+        var cache = new EntityCache(Cacheable.Eviction.W_TINY_LFU, maxSize, 0);
+        IntStream.range(0, 20).forEach(i -> cache.put(i, "value" + i, cache.generation()));
+        assertEquals(maxSize, cache.size(), "maxSize " + maxSize);
+      }
+    }
+  }
+
+  @Nested
+  public class Invalidation {
+    @Test @Tag("EntityCache")
+    public void testPutAfterAnInvalidationIsIgnored() {
+      var cache = new EntityCache(Cacheable.Eviction.LRU, 10, 0);
+      var generation = cache.generation();
+      cache.remove(1);
+      cache.put(1, "stale", generation);
+      assertNull(cache.get(1));
+      cache.put(1, "fresh", cache.generation());
+      assertNotNull(cache.get(1));
+    }
+
+    @Test @Tag("EntityCache")
+    public void testStats() {
+      var cache = new EntityCache(Cacheable.Eviction.LRU, 10, 0);
+      cache.put(1, "one", cache.generation());
+      cache.get(1);
+      cache.get(1);
+      cache.get(2);
+      var stats = cache.stats();
+      assertAll(
+          () -> assertEquals(2, stats.hitCount()),
+          () -> assertEquals(1, stats.missCount()),
+          () -> assertEquals(2.0 / 3, stats.hitRate(), 0.0001)
+      );
+    }
+  }
+}
@@ -5,23 +5,41 @@ import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import javax.sql.DataSource;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.nio.file.Files;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -1259,4 +1277,1544 @@ public class ORMTest {
     }
 
   }
-}
\ No newline at end of file
+
+
+  @Nested
+  class ColumnMapping {
+
+    @Test @Tag("ColumnMapping")
+    public void testQueryWithColumnsInADifferentOrder() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {
+        @Query("SELECT AGE, NAME, ID FROM PET")
+        List<Pet> findAllReordered();
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        repository.save(new Pet(1L, "Scooby", 50));
+        repository.save(new Pet(2L, "Scrappy", 35));
+        assertEquals(List.of(new Pet(1L, "Scooby", 50), new Pet(2L, "Scrappy", 35)),
+            repository.findAllReordered());
+      });
+    }
+
+    @Test @Tag("ColumnMapping")
+    public void testQueryWithMissingColumns() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {
+        @Query("SELECT NAME FROM PET WHERE AGE > ?")
+        List<Pet> findAllNamesOlderThan(int age);
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        repository.save(new Pet(1L, "Scooby", 50));
+        repository.save(new Pet(2L, "Scrappy", 35));
+        assertAll(
+            () -> assertEquals(List.of(new Pet(null, "Scooby", 0)), repository.findAllNamesOlderThan(40)),
+            () -> assertEquals(List.of(new Pet(null, "Scooby", 0), new Pet(null, "Scrappy", 0)),
+                repository.findAllNamesOlderThan(10))
+        );
+      });
+    }
+
+    @Test @Tag("ColumnMapping")
+    public void testQueryWithMissingColumnsIsNotManaged() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {
+        @Query("SELECT ID, NAME FROM PET")
+        List<Pet> findAllIdsAndNames();
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:missing-columns;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        repository.save(new Pet(1L, "Scooby", 50));
+      });
+      ORM.transaction(dataSource, () -> {
+        var pets = repository.findAllIdsAndNames();
+        assertEquals(List.of(new Pet(1L, "Scooby", 0)), pets);
+        pets.getFirst().setName("Scrappy");
+        assertEquals(Optional.of(new Pet(1L, "Scooby", 50)), repository.findById(1L));
+      });
+      ORM.transaction(dataSource, () -> {
+        assertEquals(Optional.of(new Pet(1L, "Scooby", 50)), repository.findById(1L));
+      });
+    }
+
+    @Test @Tag("ColumnMapping")
+    public void testQueryWithColumnRenamed() throws SQLException {
+      interface UserRepository extends Repository<Q5.AnotherUser, Long> {
+        @Query("SELECT * FROM USER2")
+        List<Q5.AnotherUser> findAllUsers();
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(UserRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Q5.AnotherUser.class);
+        var connection = ORM.currentConnection();
+        try(var statement = connection.createStatement()) {
+          statement.executeUpdate("INSERT INTO USER2 (KEY) VALUES (7);");
+        }
+        assertEquals(List.of(7L), repository.findAllUsers().stream().map(Q5.AnotherUser::getId).toList());
+      });
+    }
+  }
+
+
+  public record Book(@Id @GeneratedValue Long id, @Column("TITLE") String title, int pages) {}
+
+  @Nested
+  class RecordEntity {
+
+    @Test @Tag("RecordEntity")
+    public void testSaveReturnsANewRecordWithTheGeneratedId() throws SQLException {
+      interface BookRepository extends Repository<Book, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(BookRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Book.class);
+        var book = new Book(null, "Dune", 412);
+        var saved = repository.save(book);
+        assertAll(
+            () -> assertEquals(new Book(null, "Dune", 412), book),
+            () -> assertEquals(new Book(1L, "Dune", 412), saved)
+        );
+      });
+    }
+
+    @Test @Tag("RecordEntity")
+    public void testFindAllAndFindById() throws SQLException {
+      interface BookRepository extends Repository<Book, Long> {
+        Optional<Book> findByTitle(String title);
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(BookRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Book.class);
+        repository.save(new Book(null, "Dune", 412));
+        repository.save(new Book(null, "Hyperion", 482));
+        assertAll(
+            () -> assertEquals(List.of(new Book(1L, "Dune", 412), new Book(2L, "Hyperion", 482)),
+                repository.findAll()),
+            () -> assertEquals(Optional.of(new Book(2L, "Hyperion", 482)), repository.findById(2L)),
+            () -> assertEquals(Optional.of(new Book(1L, "Dune", 412)), repository.findByTitle("Dune"))
+        );
+      });
+    }
+
+    @Test @Tag("RecordEntity")
+    public void testQueryWithMissingColumnsUsesDefaultValues() throws SQLException {
+      interface BookRepository extends Repository<Book, Long> {
+        @Query("SELECT TITLE FROM BOOK")
+        List<Book> findAllTitles();
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(BookRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Book.class);
+        repository.save(new Book(null, "Dune", 412));
+        assertEquals(List.of(new Book(null, "Dune", 0)), repository.findAllTitles());
+      });
+    }
+  }
+
+
+  @Nested
+  class ScopedTransaction {
+
+    @Test @Tag("ScopedTransaction")
+    public void testCurrentConnection() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      ORM.scopedTransaction(dataSource, () -> assertNotNull(ORM.currentConnection()));
+      assertThrows(IllegalStateException.class, ORM::currentConnection);
+    }
+
+    @Test @Tag("ScopedTransaction")
+    public void testRollback() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:scoped-rollback;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(PersonRepository.class);
+      ORM.scopedTransaction(dataSource, () -> ORM.createTable(Person.class));
+      assertThrows(SQLException.class, () -> ORM.scopedTransaction(dataSource, () -> {
+        repository.save(new Person(1L, "iga"));
+        throw new SQLException("rollback");
+      }));
+      ORM.scopedTransaction(dataSource, () -> {
+        assertEquals(List.of(), repository.findAll());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PERSON");
+        }
+      });
+    }
+
+    @Test @Tag("ScopedTransaction")
+    @SuppressWarnings("preview")
+    public void testConnectionIsVisibleFromSubtasks() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PersonRepository.class);
+      ORM.scopedTransaction(dataSource, () -> {
+        ORM.createTable(Person.class);
+        repository.save(new Person(1L, "iga"));
+        repository.save(new Person(2L, "biva"));
+        var connection = ORM.currentConnection();
+        try(var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+          var subtask1 = scope.fork(() -> repository.findById(1L).orElseThrow());
+          var subtask2 = scope.fork(() -> repository.findById(2L).orElseThrow());
+          var subtask3 = scope.fork(ORM::currentConnection);
+          scope.join().throwIfFailed();
+          assertAll(
+              () -> assertEquals(new Person(1L, "iga"), subtask1.get()),
+              () -> assertEquals(new Person(2L, "biva"), subtask2.get()),
+              () -> assertSame(connection, subtask3.get())
+          );
+        } catch (InterruptedException | ExecutionException e) {
+          throw new AssertionError(e);
+        }
+      });
+    }
+  }
+
+
+  @Nested
+  class NestedTransaction {
+
+    @Test @Tag("NestedTransaction")
+    public void testNestedTransactionJoinsTheEnclosingTransaction() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      ORM.transaction(dataSource, () -> {
+        var connection = ORM.currentConnection();
+        ORM.transaction(dataSource, () -> assertSame(connection, ORM.currentConnection()));
+        assertSame(connection, ORM.currentConnection());
+      });
+      assertThrows(IllegalStateException.class, ORM::currentConnection);
+    }
+
+    @Test @Tag("NestedTransaction")
+    public void testNestedTransactionOnAnotherDataSource() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var dataSource2 = new JdbcDataSource();
+      dataSource2.setURL("jdbc:h2:mem:test2");
+      ORM.transaction(dataSource, () -> {
+        var connection = ORM.currentConnection();
+        ORM.transaction(dataSource2, () -> assertNotSame(connection, ORM.currentConnection()));
+        assertSame(connection, ORM.currentConnection());
+      });
+    }
+
+    @Test @Tag("NestedTransaction")
+    public void testFailureOfAJoinedTransactionRollbacksTheEnclosingTransaction() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:nested-rollback;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(PersonRepository.class);
+      ORM.transaction(dataSource, () -> ORM.createTable(Person.class));
+      assertThrows(SQLException.class, () -> ORM.transaction(dataSource, () -> {
+        repository.save(new Person(1L, "iga"));
+        assertThrows(RuntimeException.class, () -> ORM.transaction(dataSource, () -> {
+          throw new RuntimeException("rollback");
+        }));
+      }));
+      ORM.transaction(dataSource, () -> {
+        assertEquals(List.of(), repository.findAll());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PERSON");
+        }
+      });
+    }
+
+    @Test @Tag("NestedTransaction")
+    public void testSavepoint() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PersonRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Person.class);
+        repository.save(new Person(1L, "iga"));
+        assertThrows(SQLException.class, () -> ORM.nestedTransaction(() -> {
+          repository.save(new Person(2L, "biva"));
+          throw new SQLException("rollback to savepoint");
+        }));
+        ORM.nestedTransaction(() -> repository.save(new Person(3L, "john")));
+        assertEquals(List.of(new Person(1L, "iga"), new Person(3L, "john")), repository.findAll());
+      });
+    }
+
+    @Test @Tag("NestedTransaction")
+    public void testSavepointOutsideATransaction() {
+      assertAll(
+          () -> assertThrows(IllegalStateException.class, () -> ORM.nestedTransaction(() -> {})),
+          () -> assertThrows(NullPointerException.class, () -> ORM.nestedTransaction(null))
+      );
+    }
+  }
+
+
+  @Cacheable
+  public record Currency(@Id String code, String name) {}
+
+  @Cacheable
+  public static final class MutableCurrency {
+    private String code;
+    private String name;
+
+    public MutableCurrency() {}
+
+    @Id
+    public String getCode() {
+      return code;
+    }
+    public void setCode(String code) {
+      this.code = code;
+    }
+    public String getName() {
+      return name;
+    }
+    public void setName(String name) {
+      this.name = name;
+    }
+  }
+
+  @Nested
+  class IdentityMap {
+
+    @Test @Tag("IdentityMap")
+    public void testFindByIdReturnsTheSameInstance() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PersonRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Person.class);
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("INSERT INTO PERSON (ID, NAME) VALUES (1, 'iga');");
+        }
+        var person = repository.findById(1L).orElseThrow();
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DELETE FROM PERSON;");
+        }
+        // no round trip to the database
+        assertSame(person, repository.findById(1L).orElseThrow());
+      });
+    }
+
+    @Test @Tag("IdentityMap")
+    public void testFindAllAndFindByIdShareInstances() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {
+        Optional<Person> findByName(String name);
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PersonRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Person.class);
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("INSERT INTO PERSON (ID, NAME) VALUES (1, 'iga'), (2, 'ana');");
+        }
+        var people = repository.findAll();
+        assertAll(
+            () -> assertSame(people.get(0), repository.findById(people.get(0).getId()).orElseThrow()),
+            () -> assertSame(people.get(1), repository.findByName(people.get(1).getName()).orElseThrow())
+        );
+      });
+    }
+
+    @Test @Tag("IdentityMap")
+    public void testSavedEntityIsTheManagedInstance() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PersonRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Person.class);
+        var person = repository.save(new Person(1L, "iga"));
+        assertSame(person, repository.findById(1L).orElseThrow());
+      });
+    }
+
+    @Test @Tag("IdentityMap")
+    public void testIdentityMapIsDiscardedAtTheEndOfTheTransaction() throws SQLException {
+      interface PersonRepository extends Repository<Person, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:identity-map;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(PersonRepository.class);
+      var people = new ArrayList<Person>();
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Person.class);
+        repository.save(new Person(1L, "iga"));
+        people.add(repository.findById(1L).orElseThrow());
+      });
+      ORM.transaction(dataSource, () -> {
+        people.add(repository.findById(1L).orElseThrow());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PERSON;");
+        }
+      });
+      assertAll(
+          () -> assertEquals(people.get(0), people.get(1)),
+          () -> assertNotSame(people.get(0), people.get(1))
+      );
+    }
+  }
+
+  @Nested
+  class DirtyChecking {
+
+    @Test @Tag("DirtyChecking")
+    public void testModificationsAreWrittenAtCommit() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:dirty-commit;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        repository.save(new Pet(1L, "scooby", 7));
+      });
+      ORM.transaction(dataSource, () -> {
+        var pet = repository.findById(1L).orElseThrow();
+        pet.setAge(8);
+      });
+      ORM.transaction(dataSource, () -> {
+        assertEquals(new Pet(1L, "scooby", 8), repository.findById(1L).orElseThrow());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PET;");
+        }
+      });
+    }
+
+    @Test @Tag("DirtyChecking")
+    public void testOnlyModifiedColumnsAreUpdated() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("INSERT INTO PET (ID, NAME, AGE) VALUES (1, 'scooby', 7), (2, 'rex', 3);");
+        }
+        var pets = repository.findAll();
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("UPDATE PET SET NAME = UPPER(NAME);");
+        }
+        pets.forEach(pet -> pet.setAge(pet.getAge() + 1));
+        ORM.flush();
+        try(var statement = ORM.currentConnection().createStatement();
+            var resultSet = statement.executeQuery("SELECT NAME, AGE FROM PET ORDER BY ID;")) {
+          var rows = new ArrayList<String>();
+          while (resultSet.next()) {
+            rows.add(resultSet.getString(1) + " " + resultSet.getInt(2));
+          }
+          assertEquals(List.of("SCOOBY 8", "REX 4"), rows);
+        }
+      });
+    }
+
+    @Test @Tag("DirtyChecking")
+    public void testQueriesSeePendingModifications() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {
+        Optional<Pet> findByName(String name);
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        repository.save(new Pet(1L, "scooby", 7));
+        var pet = repository.findById(1L).orElseThrow();
+        pet.setName("scrappy");
+        assertSame(pet, repository.findByName("scrappy").orElseThrow());
+      });
+    }
+
+    @Test @Tag("DirtyChecking")
+    public void testModificationsAreDiscardedOnRollback() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {}
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:dirty-rollback;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        repository.save(new Pet(1L, "scooby", 7));
+      });
+      assertThrows(SQLException.class, () -> ORM.transaction(dataSource, () -> {
+        repository.findById(1L).orElseThrow().setAge(8);
+        throw new SQLException("oops");
+      }));
+      ORM.transaction(dataSource, () -> {
+        assertEquals(new Pet(1L, "scooby", 7), repository.findById(1L).orElseThrow());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PET;");
+        }
+      });
+    }
+
+    @Test @Tag("DirtyChecking")
+    public void testModificationsOfAQueryResultAreWrittenAtCommit() throws SQLException {
+      interface PetRepository extends Repository<Pet, Long> {
+        @Query("SELECT * FROM PET WHERE NAME = ?")
+        List<Pet> findPets(String name);
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:dirty-query;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        repository.save(new Pet(1L, "scooby", 7));
+      });
+      ORM.transaction(dataSource, () -> {
+        var pet = repository.findPets("scooby").getFirst();
+        assertSame(pet, repository.findById(1L).orElseThrow());
+        pet.setAge(8);
+      });
+      ORM.transaction(dataSource, () -> {
+        assertEquals(new Pet(1L, "scooby", 8), repository.findById(1L).orElseThrow());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PET;");
+        }
+      });
+    }
+  }
+
+  @Nested
+  class DerivedQueries {
+    interface PetRepository extends Repository<Pet, Long> {
+      List<Pet> findByAgeGreaterThanOrderByAgeDesc(int age);
+      List<Pet> findByNameOrAgeLessThanEqualOrderByIdAsc(String name, int age);
+      List<Pet> findByAgeBetweenAndNameOrderByAge(int min, int max, String name);
+      List<Pet> findByNameInOrderById(Collection<String> names);
+      List<Pet> findTop2ByAgeGreaterThanOrderByAgeAsc(int age);
+      Optional<Pet> findFirstByOrderByAgeDesc();
+      Pet findByName(String name);
+      long countByAgeGreaterThan(int age);
+      int countByName(String name);
+      boolean existsByName(String name);
+      int deleteByAgeLessThan(int age);
+    }
+
+    private static void insertPets() throws SQLException {
+      ORM.createTable(Pet.class);
+      try(var statement = ORM.currentConnection().createStatement()) {
+        statement.executeUpdate("""
+            INSERT INTO PET (ID, NAME, AGE) VALUES
+              (1, 'scooby', 7), (2, 'rex', 3), (3, 'garfield', 12), (4, 'odie', 3), (5, 'snoopy', 9);
+            """);
+      }
+    }
+
+    private static List<Long> ids(List<Pet> pets) {
+      return pets.stream().map(Pet::getId).toList();
+    }
+
+    @Test @Tag("DerivedQueries")
+    public void testComparisonsAndOrderBy() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertAll(
+            () -> assertEquals(List.of(3L, 5L, 1L), ids(repository.findByAgeGreaterThanOrderByAgeDesc(5))),
+            () -> assertEquals(List.of(2L, 3L, 4L), ids(repository.findByNameOrAgeLessThanEqualOrderByIdAsc("garfield", 3))),
+            () -> assertEquals(List.of(1L), ids(repository.findByAgeBetweenAndNameOrderByAge(3, 9, "scooby"))),
+            () -> assertEquals(new Pet(2L, "rex", 3), repository.findByName("rex")),
+            () -> assertNull(repository.findByName("tom"))
+        );
+      });
+    }
+
+    @Test @Tag("DerivedQueries")
+    public void testIn() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertAll(
+            () -> assertEquals(List.of(1L), ids(repository.findByNameInOrderById(List.of("scooby")))),
+            () -> assertEquals(List.of(1L, 2L, 5L), ids(repository.findByNameInOrderById(List.of("snoopy", "rex", "scooby")))),
+            () -> assertEquals(List.of(), repository.findByNameInOrderById(List.of()))
+        );
+      });
+    }
+
+    @Test @Tag("DerivedQueries")
+    public void testTop() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertAll(
+            () -> assertEquals(List.of(1L, 5L), ids(repository.findTop2ByAgeGreaterThanOrderByAgeAsc(3))),
+            () -> assertEquals(3L, repository.findFirstByOrderByAgeDesc().orElseThrow().getId())
+        );
+      });
+    }
+
+    @Test @Tag("DerivedQueries")
+    public void testCountAndExists() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertAll(
+            () -> assertEquals(3L, repository.countByAgeGreaterThan(5)),
+            () -> assertEquals(0, repository.countByName("tom")),
+            () -> assertTrue(repository.existsByName("odie")),
+            () -> assertFalse(repository.existsByName("tom"))
+        );
+      });
+    }
+
+    @Test @Tag("DerivedQueries")
+    public void testDelete() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        var rex = repository.findById(2L).orElseThrow();
+        assertEquals(2, repository.deleteByAgeLessThan(5));
+        assertAll(
+            () -> assertEquals(Optional.empty(), repository.findById(rex.getId())),
+            () -> assertEquals(List.of(1L, 3L, 5L), ids(repository.findAll()))
+        );
+      });
+    }
+
+    @Test @Tag("DerivedQueries")
+    public void testInvalidMethodsAreRejectedAtCreation() {
+      interface UnknownPropertyRepository extends Repository<Pet, Long> {
+        List<Pet> findByColor(String color);
+      }
+      interface WrongParameterCountRepository extends Repository<Pet, Long> {
+        List<Pet> findByAgeBetween(int age);
+      }
+      interface WrongReturnTypeRepository extends Repository<Pet, Long> {
+        String countByName(String name);
+      }
+      interface WrongInParameterRepository extends Repository<Pet, Long> {
+        List<Pet> findByNameIn(String name);
+      }
+      assertAll(
+          () -> assertThrows(IllegalStateException.class, () -> ORM.createRepository(UnknownPropertyRepository.class)),
+          () -> assertThrows(IllegalStateException.class, () -> ORM.createRepository(WrongParameterCountRepository.class)),
+          () -> assertThrows(IllegalStateException.class, () -> ORM.createRepository(WrongReturnTypeRepository.class)),
+          () -> assertThrows(IllegalStateException.class, () -> ORM.createRepository(WrongInParameterRepository.class))
+      );
+    }
+  }
+
+  @Nested
+  class Pagination {
+    interface PetRepository extends Repository<Pet, Long> {
+      Slice<Pet> findByNameOrAgeGreaterThan(String name, int age, PageRequest pageRequest);
+
+      @Query("SELECT * FROM PET WHERE AGE < ?;")
+      Slice<Pet> findYoungPets(int age, PageRequest pageRequest);
+    }
+
+    private static void insertPets() throws SQLException {
+      ORM.createTable(Pet.class);
+      try(var statement = ORM.currentConnection().createStatement()) {
+        statement.executeUpdate("""
+            INSERT INTO PET (ID, NAME, AGE) VALUES
+              (1, 'scooby', 7), (2, 'rex', 3), (3, 'garfield', 12), (4, 'odie', 3), (5, 'snoopy', 9);
+            """);
+      }
+    }
+
+    private static List<List<Long>> allPages(PageRequest firstPage, ThrowingFunction<PageRequest, Slice<Pet>> finder) throws SQLException {
+      var pages = new ArrayList<List<Long>>();
+      var pageRequest = firstPage;
+      while (pageRequest != null) {
+        var slice = finder.apply(pageRequest);
+        pages.add(slice.content().stream().map(Pet::getId).toList());
+        pageRequest = slice.nextPageRequest();
+      }
+      return pages;
+    }
+
+    @FunctionalInterface
+    interface ThrowingFunction<T, R> {
+      R apply(T value) throws SQLException;
+    }
+
+    @Test @Tag("Pagination")
+    public void testFindAllPages() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertAll(
+            () -> assertEquals(List.of(List.of(1L, 2L), List.of(3L, 4L), List.of(5L)),
+                allPages(PageRequest.ofSize(2), repository::findAll)),
+            () -> assertEquals(List.of(List.of(1L, 2L, 3L, 4L, 5L)),
+                allPages(PageRequest.ofSize(5), repository::findAll)),
+            () -> assertEquals(new Slice<Pet>(List.of(), null), repository.findAll(new PageRequest(3, 5L)))
+        );
+      });
+    }
+
+    @Test @Tag("Pagination")
+    public void testDerivedQueryPages() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertEquals(List.of(List.of(2L, 3L), List.of(5L)),
+            allPages(PageRequest.ofSize(2), page -> repository.findByNameOrAgeGreaterThan("rex", 8, page)));
+      });
+    }
+
+    @Test @Tag("Pagination")
+    public void testQueryPages() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertEquals(List.of(List.of(1L, 2L), List.of(4L)),
+            allPages(PageRequest.ofSize(2), page -> repository.findYoungPets(8, page)));
+      });
+    }
+
+    @Test @Tag("Pagination")
+    public void testInvalidPageRequest() {
+      interface OrderedPetRepository extends Repository<Pet, Long> {
+        Slice<Pet> findByNameOrderByAge(String name, PageRequest pageRequest);
+      }
+      assertAll(
+          () -> assertThrows(IllegalArgumentException.class, () -> PageRequest.ofSize(0)),
+          () -> assertThrows(IllegalStateException.class, () -> ORM.createRepository(OrderedPetRepository.class))
+      );
+    }
+
+    @Test @Tag("Pagination")
+    public void testRowMappersAreSharedByAllPageSizes() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        repository.findYoungPets(10, PageRequest.ofSize(1));
+        var count = ORM.rowMapperCount(Pet.class);
+        for (var size = 2; size <= 5; size++) {
+          repository.findYoungPets(10, PageRequest.ofSize(size));
+        }
+        assertEquals(count, ORM.rowMapperCount(Pet.class));
+      });
+    }
+  }
+
+  @Nested
+  class BulkOperations {
+    interface PetRepository extends Repository<Pet, Long> {
+      @Modifying
+      @Query("UPDATE PET SET AGE = AGE + 1 WHERE AGE < ?")
+      int birthday(int age);
+
+      @Modifying
+      @Query("DELETE FROM PET")
+      void deleteAll();
+    }
+
+    private static void insertPets(int count) throws SQLException {
+      ORM.createTable(Pet.class);
+      try(var statement = ORM.currentConnection().prepareStatement("INSERT INTO PET (ID, NAME, AGE) VALUES (?, ?, ?);")) {
+        for (var i = 1; i <= count; i++) {
+          statement.setLong(1, i);
+          statement.setString(2, "pet" + i);
+          statement.setInt(3, i % 10);
+          statement.addBatch();
+        }
+        statement.executeBatch();
+      }
+    }
+
+    @Test @Tag("BulkOperations")
+    public void testDeleteById() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets(3);
+        var pet = repository.findById(2L).orElseThrow();
+        pet.setAge(42);
+        repository.deleteById(2L);
+        assertAll(
+            () -> assertEquals(Optional.empty(), repository.findById(2L)),
+            () -> assertEquals(List.of(1L, 3L), repository.findAll().stream().map(Pet::getId).toList())
+        );
+      });
+    }
+
+    @Test @Tag("BulkOperations")
+    public void testDeleteAllById() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets(3_000);
+        var ids = LongStream.rangeClosed(1, 2_500).boxed().toList();
+        assertAll(
+            () -> assertEquals(2_500, repository.deleteAllById(ids)),
+            () -> assertEquals(500, repository.findAll().size()),
+            () -> assertEquals(0, repository.deleteAllById(List.of()))
+        );
+      });
+    }
+
+    @Test @Tag("BulkOperations")
+    public void testModifyingQuery() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets(10);
+        var pet = repository.findById(1L).orElseThrow();
+        assertEquals(5, repository.birthday(5));
+        assertAll(
+            () -> assertEquals(1, pet.getAge()),
+            () -> assertEquals(2, repository.findById(1L).orElseThrow().getAge())
+        );
+        repository.deleteAll();
+        assertEquals(List.of(), repository.findAll());
+      });
+    }
+  }
+
+  public record PetName(String name) {}
+
+  public interface PetSummary {
+    String getName();
+    int getAge();
+
+    default String describe() {
+      return getName() + " is " + getAge();
+    }
+  }
+
+  @Nested
+  class Projections {
+    interface PetRepository extends Repository<Pet, Long> {
+      @Query("SELECT NAME FROM PET ORDER BY ID")
+      List<PetName> findNames();
+
+      @Query("SELECT NAME, AGE FROM PET WHERE ID = ?")
+      Optional<PetSummary> findSummary(long id);
+
+      List<PetName> findByAgeGreaterThanOrderById(int age);
+
+      PetSummary findByName(String name);
+    }
+
+    private static void insertPets() throws SQLException {
+      ORM.createTable(Pet.class);
+      try(var statement = ORM.currentConnection().createStatement()) {
+        statement.executeUpdate("INSERT INTO PET (ID, NAME, AGE) VALUES (1, 'scooby', 7), (2, 'rex', 3), (3, 'garfield', 12);");
+      }
+    }
+
+    @Test @Tag("Projections")
+    public void testRecordProjection() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        assertAll(
+            () -> assertEquals(List.of(new PetName("scooby"), new PetName("rex"), new PetName("garfield")),
+                repository.findNames()),
+            () -> assertEquals(List.of(new PetName("scooby"), new PetName("garfield")),
+                repository.findByAgeGreaterThanOrderById(5))
+        );
+      });
+    }
+
+    @Test @Tag("Projections")
+    public void testInterfaceProjection() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertPets();
+        var summary = repository.findSummary(2L).orElseThrow();
+        assertAll(
+            () -> assertEquals("rex", summary.getName()),
+            () -> assertEquals(3, summary.getAge()),
+            () -> assertEquals("rex is 3", summary.describe()),
+            () -> assertEquals(summary, repository.findByName("rex")),
+            () -> assertEquals(summary.hashCode(), repository.findByName("rex").hashCode()),
+            () -> assertNotEquals(summary, repository.findByName("scooby")),
+            () -> assertNull(repository.findByName("tom")),
+            () -> assertEquals(Optional.empty(), repository.findSummary(42L))
+        );
+      });
+    }
+
+    @Test @Tag("Projections")
+    public void testProjectionWithUnknownProperty() {
+      record PetColor(String color) {}
+      interface PetRepository extends Repository<Pet, Long> {
+        List<PetColor> findByName(String name);
+      }
+      assertThrows(IllegalStateException.class, () -> ORM.createRepository(PetRepository.class));
+    }
+  }
+
+  public static final class Owner {
+    private Long id;
+    private String name;
+    private List<Dog> dogs;
+
+    public Owner() {}
+    public Owner(Long id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+
+    @Id
+    public Long getId() {
+      return id;
+    }
+    public void setId(Long id) {
+      this.id = id;
+    }
+    public String getName() {
+      return name;
+    }
+    public void setName(String name) {
+      this.name = name;
+    }
+    @OneToMany(mappedBy = "owner")
+    public List<Dog> getDogs() {
+      return dogs;
+    }
+    public void setDogs(List<Dog> dogs) {
+      this.dogs = dogs;
+    }
+  }
+
+  public static final class Dog {
+    private Long id;
+    private String name;
+    private Owner owner;
+
+    public Dog() {}
+    public Dog(Long id, String name, Owner owner) {
+      this.id = id;
+      this.name = name;
+      this.owner = owner;
+    }
+
+    @Id
+    public Long getId() {
+      return id;
+    }
+    public void setId(Long id) {
+      this.id = id;
+    }
+    public String getName() {
+      return name;
+    }
+    public void setName(String name) {
+      this.name = name;
+    }
+    @ManyToOne
+    public Owner getOwner() {
+      return owner;
+    }
+    public void setOwner(Owner owner) {
+      this.owner = owner;
+    }
+  }
+
+  public interface Breeder {
+    Long getId();
+    String getName();
+  }
+
+  public static final class Kennel implements Breeder {
+    private Long id;
+    private String name;
+
+    @Id
+    @Override
+    public Long getId() {
+      return id;
+    }
+    public void setId(Long id) {
+      this.id = id;
+    }
+    @Override
+    public String getName() {
+      return name;
+    }
+    public void setName(String name) {
+      this.name = name;
+    }
+  }
+
+  public static final class Puppy {
+    private Long id;
+    private Breeder breeder;
+
+    @Id
+    public Long getId() {
+      return id;
+    }
+    public void setId(Long id) {
+      this.id = id;
+    }
+    @ManyToOne(targetEntity = Kennel.class)
+    public Breeder getBreeder() {
+      return breeder;
+    }
+    public void setBreeder(Breeder breeder) {
+      this.breeder = breeder;
+    }
+  }
+
+  @Nested
+  class Relationships {
+    interface OwnerRepository extends Repository<Owner, Long> {}
+    interface DogRepository extends Repository<Dog, Long> {}
+    interface PuppyRepository extends Repository<Puppy, Long> {}
+
+    /**
+     * A datasource that counts the prepared statements.
+     */
+    private static DataSource countingDataSource(DataSource dataSource, AtomicInteger counter) {
+      return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class },
+          (proxy, method, args) -> {
+            var result = method.invoke(dataSource, args);
+            if (!(result instanceof Connection connection)) {
+              return result;
+            }
+            return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                (proxy2, method2, args2) -> {
+                  if (method2.getName().equals("prepareStatement")) {
+                    counter.incrementAndGet();
+                  }
+                  try {
+                    return method2.invoke(connection, args2);
+                  } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                  }
+                });
+          });
+    }
+
+    private static void insertOwnersAndDogs() throws SQLException {
+      ORM.createTable(Owner.class);
+      ORM.createTable(Dog.class);
+      try(var statement = ORM.currentConnection().createStatement()) {
+        statement.executeUpdate("""
+            INSERT INTO OWNER (ID, NAME) VALUES (1, 'shaggy'), (2, 'jon'), (3, 'charlie');
+            INSERT INTO DOG (ID, NAME, OWNER) VALUES
+              (1, 'scooby', 1), (2, 'scrappy', 1), (3, 'odie', 2), (4, 'snoopy', 3), (5, 'belle', 3), (6, 'rex', NULL);
+            """);
+      }
+    }
+
+    @Test @Tag("Relationships")
+    public void testManyToOneIsFetchedWithOneQuery() throws SQLException {
+      var counter = new AtomicInteger();
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(DogRepository.class);
+      ORM.transaction(countingDataSource(dataSource, counter), () -> {
+        insertOwnersAndDogs();
+        counter.set(0);
+        var dogs = repository.findAll();
+        // the dogs, their owners and the dogs of the owners
+        assertEquals(3, counter.get());
+        assertAll(
+            () -> assertEquals("shaggy", dogs.get(0).getOwner().getName()),
+            () -> assertSame(dogs.get(0).getOwner(), dogs.get(1).getOwner()),
+            () -> assertEquals("jon", dogs.get(2).getOwner().getName()),
+            () -> assertNull(dogs.get(5).getOwner())
+        );
+      });
+    }
+
+    @Test @Tag("Relationships")
+    public void testOneToManyIsFetchedWithOneQuery() throws SQLException {
+      var counter = new AtomicInteger();
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(OwnerRepository.class);
+      ORM.transaction(countingDataSource(dataSource, counter), () -> {
+        insertOwnersAndDogs();
+        counter.set(0);
+        var owners = repository.findAll();
+        // the owners and their dogs, the owners of the dogs are already loaded
+        assertEquals(2, counter.get());
+        assertAll(
+            () -> assertEquals(List.of("scooby", "scrappy"), owners.get(0).getDogs().stream().map(Dog::getName).toList()),
+            () -> assertEquals(List.of("odie"), owners.get(1).getDogs().stream().map(Dog::getName).toList()),
+            () -> assertEquals(List.of("snoopy", "belle"), owners.get(2).getDogs().stream().map(Dog::getName).toList()),
+            () -> assertSame(owners.get(0), owners.get(0).getDogs().get(0).getOwner())
+        );
+      });
+    }
+
+    @Test @Tag("Relationships")
+    public void testSaveAndUpdateForeignKey() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var ownerRepository = ORM.createRepository(OwnerRepository.class);
+      var dogRepository = ORM.createRepository(DogRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Owner.class);
+        ORM.createTable(Dog.class);
+        var shaggy = ownerRepository.save(new Owner(1L, "shaggy"));
+        var fred = ownerRepository.save(new Owner(2L, "fred"));
+        var scooby = dogRepository.save(new Dog(1L, "scooby", shaggy));
+        scooby.setOwner(fred);
+        ORM.flush();
+        try(var statement = ORM.currentConnection().createStatement();
+            var resultSet = statement.executeQuery("SELECT OWNER FROM DOG WHERE ID = 1")) {
+          assertTrue(resultSet.next());
+          assertEquals(2L, resultSet.getLong(1));
+        }
+      });
+    }
+
+    @Test @Tag("Relationships")
+    public void testLazyManyToOne() throws SQLException {
+      var counter = new AtomicInteger();
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PuppyRepository.class);
+      ORM.transaction(countingDataSource(dataSource, counter), () -> {
+        ORM.createTable(Kennel.class);
+        ORM.createTable(Puppy.class);
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("""
+              INSERT INTO KENNEL (ID, NAME) VALUES (1, 'rocky mountain');
+              INSERT INTO PUPPY (ID, BREEDER) VALUES (1, 1), (2, 1);
+              """);
+        }
+        counter.set(0);
+        var puppies = repository.findAll();
+        assertEquals(1, counter.get());
+        var breeder = puppies.get(0).getBreeder();
+        assertEquals(1L, breeder.getId());
+        assertEquals(1, counter.get());
+        assertEquals("rocky mountain", breeder.getName());
+        assertEquals(2, counter.get());
+        assertEquals("rocky mountain", puppies.get(1).getBreeder().getName());
+        assertEquals(2, counter.get());
+      });
+    }
+
+    @Test @Tag("Relationships")
+    public void testQueryFetchesTheAssociations() throws SQLException {
+      interface DogQueryRepository extends Repository<Dog, Long> {
+        @Query("SELECT * FROM DOG WHERE NAME = ?")
+        List<Dog> findDogs(String name);
+
+        @Query("SELECT * FROM DOG WHERE OWNER = ?")
+        Slice<Dog> findDogsOfOwner(long ownerId, PageRequest pageRequest);
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(DogQueryRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertOwnersAndDogs();
+        var scooby = repository.findDogs("scooby").getFirst();
+        var slice = repository.findDogsOfOwner(3L, PageRequest.ofSize(10));
+        assertAll(
+            () -> assertEquals("shaggy", scooby.getOwner().getName()),
+            () -> assertEquals(List.of("scooby", "scrappy"), scooby.getOwner().getDogs().stream().map(Dog::getName).toList()),
+            () -> assertEquals(List.of("charlie", "charlie"), slice.content().stream().map(dog -> dog.getOwner().getName()).toList())
+        );
+      });
+    }
+
+    @Test @Tag("Relationships")
+    public void testSaveAfterQueryKeepsTheForeignKey() throws SQLException {
+      interface DogQueryRepository extends Repository<Dog, Long> {
+        @Query("SELECT * FROM DOG WHERE NAME = ?")
+        List<Dog> findDogs(String name);
+      }
+
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(DogQueryRepository.class);
+      ORM.transaction(dataSource, () -> {
+        insertOwnersAndDogs();
+        var scooby = repository.findDogs("scooby").getFirst();
+        scooby.setName("scooby-doo");
+        repository.save(scooby);
+        try(var statement = ORM.currentConnection().createStatement();
+            var resultSet = statement.executeQuery("SELECT NAME, OWNER FROM DOG WHERE ID = 1")) {
+          assertTrue(resultSet.next());
+          assertEquals("scooby-doo", resultSet.getString(1));
+          assertEquals(1L, resultSet.getLong(2));
+        }
+      });
+    }
+  }
+
+  @Nested
+  class SecondLevelCache {
+
+    @Test @Tag("SecondLevelCache")
+    public void testFindByIdUsesTheCache() throws SQLException {
+      interface CurrencyRepository extends Repository<Currency, String> {}
+
+      ORM.clearCache(Currency.class);
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(CurrencyRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Currency.class);
+        repository.save(new Currency("EUR", "euro"));
+      });
+      var before = ORM.cacheStats(Currency.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Currency.class);
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("INSERT INTO CURRENCY (CODE, NAME) VALUES ('EUR', 'euro');");
+        }
+        assertEquals(new Currency("EUR", "euro"), repository.findById("EUR").orElseThrow());
+      });
+      ORM.transaction(dataSource, () -> {
+        // served by the cache, the table does not exist anymore
+        assertEquals(new Currency("EUR", "euro"), repository.findById("EUR").orElseThrow());
+      });
+      var after = ORM.cacheStats(Currency.class);
+      assertAll(
+          () -> assertEquals(1, after.hitCount() - before.hitCount()),
+          () -> assertEquals(1, after.missCount() - before.missCount())
+      );
+    }
+
+    @Test @Tag("SecondLevelCache")
+    public void testSaveInvalidatesTheCache() throws SQLException {
+      interface CurrencyRepository extends Repository<Currency, String> {}
+
+      ORM.clearCache(Currency.class);
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(CurrencyRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Currency.class);
+        repository.save(new Currency("EUR", "euro"));
+        assertEquals(Optional.of(new Currency("EUR", "euro")), repository.findById("EUR"));
+        repository.save(new Currency("EUR", "Euro"));
+        assertEquals(Optional.of(new Currency("EUR", "Euro")), repository.findById("EUR"));
+      });
+    }
+
+    @Test @Tag("SecondLevelCache")
+    public void testUncommittedWritesAreNotCached() throws SQLException {
+      interface CurrencyRepository extends Repository<Currency, String> {}
+
+      ORM.clearCache(Currency.class);
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:cache-rollback;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createRepository(CurrencyRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Currency.class);
+        repository.save(new Currency("EUR", "euro"));
+      });
+      assertThrows(SQLException.class, () -> ORM.transaction(dataSource, () -> {
+        repository.save(new Currency("EUR", "uncommitted"));
+        assertEquals(Optional.of(new Currency("EUR", "uncommitted")), repository.findById("EUR"));
+        throw new SQLException("rollback");
+      }));
+      ORM.transaction(dataSource, () -> {
+        assertEquals(Optional.of(new Currency("EUR", "euro")), repository.findById("EUR"));
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE CURRENCY");
+        }
+      });
+    }
+
+    @Test @Tag("SecondLevelCache")
+    public void testCacheableEntityShouldBeARecord() {
+      interface MutableCurrencyRepository extends Repository<MutableCurrency, String> {}
+
+      assertThrows(IllegalStateException.class, () -> ORM.createRepository(MutableCurrencyRepository.class));
+    }
+
+    @Test @Tag("SecondLevelCache")
+    public void testCacheStatsOfANonCacheableEntity() {
+      assertAll(
+          () -> assertThrows(IllegalStateException.class, () -> ORM.cacheStats(Person.class)),
+          () -> assertThrows(NullPointerException.class, () -> ORM.cacheStats(null))
+      );
+    }
+  }
+
+  @Nested
+  class ParallelScan {
+    interface PetRepository extends Repository<Pet, Long> {}
+    interface CurrencyRepository extends Repository<Currency, String> {}
+
+    @Test @Tag("ParallelScan")
+    public void testParallelScan() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:parallel-scan;DB_CLOSE_DELAY=-1");
+      try(var pool = new ConnectionPool(dataSource, 5)) {
+        var repository = ORM.createRepository(PetRepository.class);
+        var pets = LongStream.rangeClosed(1, 100)
+            .mapToObj(id -> new Pet(id, "pet" + id, (int) id % 10))
+            .toList();
+        ORM.transaction(pool, () -> {
+          ORM.createTable(Pet.class);
+          pets.forEach(repository::save);
+        });
+        ORM.transaction(pool, () -> {
+          var stream = repository.parallelScan(4);
+          assertTrue(stream.isParallel());
+          var result = stream.sorted(Comparator.comparing(Pet::getId)).toList();
+          assertEquals(pets, result);
+          try(var statement = ORM.currentConnection().createStatement()) {
+            statement.executeUpdate("DROP TABLE PET");
+          }
+        });
+      }
+    }
+
+    @Test @Tag("ParallelScan")
+    public void testParallelScanOfAnEmptyTable() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      var repository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        assertEquals(0, repository.parallelScan(4).count());
+      });
+    }
+
+    @Test @Tag("ParallelScan")
+    public void testParallelScanPreconditions() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:test");
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        ORM.createTable(Currency.class);
+        assertAll(
+            () -> assertThrows(IllegalArgumentException.class,
+                () -> ORM.createRepository(PetRepository.class).parallelScan(0)),
+            () -> assertThrows(IllegalStateException.class,
+                () -> ORM.createRepository(CurrencyRepository.class).parallelScan(4))
+        );
+      });
+    }
+
+    @Test @Tag("ParallelScan")
+    public void testIdRanges() {
+      assertAll(
+          () -> assertEquals(
+              List.of(new ORM.IdRange(1, 4), new ORM.IdRange(5, 8), new ORM.IdRange(9, 10)),
+              ORM.idRanges(1, 10, 3)),
+          () -> assertEquals(
+              List.of(new ORM.IdRange(1, 1), new ORM.IdRange(2, 2)),
+              ORM.idRanges(1, 2, 4)),
+          () -> assertEquals(List.of(new ORM.IdRange(5, 5)), ORM.idRanges(5, 5, 3)),
+          () -> assertEquals(
+              List.of(new ORM.IdRange(Long.MIN_VALUE, Long.MAX_VALUE)),
+              ORM.idRanges(Long.MIN_VALUE, Long.MAX_VALUE, 1)),
+          () -> assertEquals(
+              List.of(new ORM.IdRange(Long.MIN_VALUE, -1), new ORM.IdRange(0, Long.MAX_VALUE)),
+              ORM.idRanges(Long.MIN_VALUE, Long.MAX_VALUE, 2))
+      );
+    }
+  }
+
+  @Nested
+  class AsyncRepositories {
+    interface PetRepository extends Repository<Pet, Long> {
+      List<Pet> findByName(String name);
+    }
+
+    @Test @Tag("AsyncRepositories")
+    public void testOperationsOutsideATransaction() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:async-outside;DB_CLOSE_DELAY=-1");
+      try(var pool = new ConnectionPool(dataSource, 4)) {
+        ORM.transaction(pool, () -> ORM.createTable(Pet.class));
+        var repository = ORM.createAsyncRepository(PetRepository.class, pool);
+        CompletableFuture.allOf(
+            repository.save(new Pet(1L, "scooby", 7)),
+            repository.save(new Pet(2L, "snoopy", 5))
+        ).join();
+        var scooby = repository.findById(1L);
+        var snoopies = repository.call(r -> r.findByName("snoopy"));
+        assertAll(
+            () -> assertEquals(Optional.of(new Pet(1L, "scooby", 7)), scooby.join()),
+            () -> assertEquals(List.of(new Pet(2L, "snoopy", 5)), snoopies.join()),
+            () -> assertEquals(2, repository.findAll().join().size())
+        );
+        ORM.transaction(pool, () -> {
+          try(var statement = ORM.currentConnection().createStatement()) {
+            statement.executeUpdate("DROP TABLE PET");
+          }
+        });
+      }
+    }
+
+    @Test @Tag("AsyncRepositories")
+    public void testOperationsOutsideATransactionRunConcurrently() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:async-concurrent");
+      try(var pool = new ConnectionPool(dataSource, 2)) {
+        var repository = ORM.createAsyncRepository(PetRepository.class, pool);
+        var latch = new CountDownLatch(2);
+        var futures = IntStream.range(0, 2)
+            .mapToObj(__ -> repository.call(r -> {
+              latch.countDown();
+              try {
+                return Thread.currentThread().isVirtual() && latch.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                throw new AssertionError(e);
+              }
+            }))
+            .toList();
+        for(var future : futures) {
+          assertTrue(future.join());
+        }
+      }
+    }
+
+    @Test @Tag("AsyncRepositories")
+    public void testOperationsAreChainedInATransaction() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:async-chained;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createAsyncRepository(PetRepository.class, dataSource);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        var connection = ORM.currentConnection();
+        repository.save(new Pet(1L, "scooby", 7));
+        var pet = repository.findById(1L);
+        var sameConnection = repository.call(__ -> ORM.currentConnection() == connection);
+        assertAll(
+            () -> assertEquals(Optional.of(new Pet(1L, "scooby", 7)), pet.join()),
+            () -> assertTrue(sameConnection.join())
+        );
+        // not joined, the commit waits for it
+        repository.save(new Pet(2L, "snoopy", 5));
+      });
+      ORM.transaction(dataSource, () -> {
+        assertEquals(2, ORM.createRepository(PetRepository.class).findAll().size());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PET");
+        }
+      });
+    }
+
+    @Test @Tag("AsyncRepositories")
+    public void testFailedOperationRollbacksTheTransaction() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:async-rollback;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createAsyncRepository(PetRepository.class, dataSource);
+      ORM.transaction(dataSource, () -> ORM.createTable(Pet.class));
+      assertThrows(SQLException.class, () -> ORM.transaction(dataSource, () -> {
+        repository.save(new Pet(1L, "scooby", 7));
+        var failure = repository.call(__ -> { throw new IllegalStateException("oops"); });
+        assertThrows(CompletionException.class, failure::join);
+      }));
+      ORM.transaction(dataSource, () -> {
+        assertEquals(List.of(), ORM.createRepository(PetRepository.class).findAll());
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PET");
+        }
+      });
+    }
+
+    @Test @Tag("AsyncRepositories")
+    public void testSynchronousOperationWaitsForThePendingOperations() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:async-wait;DB_CLOSE_DELAY=-1");
+      var repository = ORM.createAsyncRepository(PetRepository.class, dataSource);
+      var syncRepository = ORM.createRepository(PetRepository.class);
+      ORM.transaction(dataSource, () -> {
+        ORM.createTable(Pet.class);
+        var save = repository.call(r -> {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          return r.save(new Pet(1L, "scooby", 7));
+        });
+        assertEquals(List.of(new Pet(1L, "scooby", 7)), syncRepository.findAll());
+        assertTrue(save.isDone());
+      });
+      ORM.transaction(dataSource, () -> {
+        try(var statement = ORM.currentConnection().createStatement()) {
+          statement.executeUpdate("DROP TABLE PET");
+        }
+      });
+    }
+
+    @Test @Tag("AsyncRepositories")
+    public void testDatabaseFailureIsReportedAsASQLException() throws SQLException {
+      var dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:async-failure");
+      var repository = ORM.createAsyncRepository(PetRepository.class, dataSource);
+      var outside = assertThrows(CompletionException.class, () -> repository.findAll().join());
+      assertInstanceOf(SQLException.class, outside.getCause());
+      assertThrows(SQLException.class, () -> ORM.transaction(dataSource, () -> {
+        var inside = assertThrows(CompletionException.class, () -> repository.findAll().join());
+        assertInstanceOf(SQLException.class, inside.getCause());
+      }));
+    }
+
+    @Test @Tag("AsyncRepositories")
+    public void testCreateAsyncRepositoryPreconditions() {
+      var dataSource = new JdbcDataSource();
+      assertAll(
+          () -> assertThrows(NullPointerException.class, () -> ORM.createAsyncRepository(null, dataSource)),
+          () -> assertThrows(NullPointerException.class, () -> ORM.createAsyncRepository(PetRepository.class, null)),
+          () -> assertThrows(NullPointerException.class,
+              () -> ORM.createAsyncRepository(PetRepository.class, dataSource).call(null))
+      );
+    }
+  }
+}